@@ -0,0 +1,162 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers one cache from many threads and checks that the size accounting matches the files on disk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ACacheStressTest {
+
+    private static final int THREADS = 16;
+    private static final int OPERATIONS = 2000;
+    private static final int KEYS = 64;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDir = new File(context.getCacheDir(), "acache-stress-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    @Test
+    public void sameInstanceForEquivalentPaths() {
+        ACache cache = ACache.get(mDir);
+        assertSame(cache, ACache.get(new File(mDir.getAbsolutePath() + "/.")));
+        assertSame(cache, ACache.get(new File(mDir.getParentFile(), "../" + mDir.getParentFile().getName() + "/" + mDir.getName())));
+    }
+
+    @Test
+    public void concurrentPutRemoveKeepsAccounting() throws Exception {
+        // small enough to evict all the time
+        ACache cache = ACache.get(mDir, 32 * 1024, 48);
+        hammer(cache);
+
+        ACache.Stats stats = cache.getStats();
+        long size = 0;
+        int count = 0;
+        File[] files = mDir.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            size += file.length();
+            count++;
+        }
+        assertEquals(count, stats.diskCount);
+        assertEquals(size, stats.diskSize);
+        assertTrue(stats.diskSize <= 32 * 1024);
+        assertTrue(stats.diskCount <= 48);
+    }
+
+    @Test
+    public void concurrentWriteBehindReadsLastValue() throws Exception {
+        ACache cache = ACache.get(mDir).enableMemoryTier(16 * 1024).enableWriteBehind();
+        hammer(cache);
+        cache.flush();
+
+        ACache.Stats stats = cache.getStats();
+        assertEquals(0, stats.pendingWrites);
+
+        // after the barrier every key reads back what is on disk
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            cache.put(key, "final" + i);
+        }
+        cache.flush();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("final" + i, cache.getAsString("key" + i));
+        }
+    }
+
+    @Test
+    public void sweepReclaimsOnlyExpiredEntries() throws Exception {
+        ACache cache = ACache.get(mDir);
+        for (int i = 0; i < KEYS; i++) {
+            cache.put("expiring" + i, new byte[100], 1);
+            cache.put("kept" + i, new byte[100]);
+        }
+        Thread.sleep(2100);
+
+        ACache.SweepResult result = cache.sweep(1000);
+        assertTrue(result.complete);
+        assertEquals(KEYS, result.entries);
+        assertEquals(KEYS, cache.getStats().diskCount);
+        for (int i = 0; i < KEYS; i++) {
+            assertNotNull(cache.getAsBinary("kept" + i));
+        }
+    }
+
+    private static void hammer(final ACache cache) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    String key = "key" + random.nextInt(KEYS);
+                    int op = random.nextInt(10);
+                    if (op < 5) {
+                        byte[] value = new byte[random.nextInt(2048)];
+                        random.nextBytes(value);
+                        cache.put(key, value);
+                    } else if (op < 7) {
+                        cache.remove(key);
+                    } else {
+                        cache.getAsBinary(key);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time until the labels of all installed packages are cached, one by one and with the prefetch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CacheManagerPrefetchTest {
+
+    private static final String TAG = "CacheManagerPrefetchTest";
+
+    private Context mContext;
+    private PackageManager mPackageManager;
+    private List<ApplicationInfo> mApps;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mPackageManager = mContext.getPackageManager();
+        mApps = mPackageManager.getInstalledApplications(0);
+    }
+
+    @Test
+    public void prefetchFillsTheCache() {
+        CacheManager.getLabelCache(mContext).clear();
+        long start = System.nanoTime();
+        for (ApplicationInfo app : mApps) {
+            CacheManager.getLabel(mContext, app, mPackageManager);
+        }
+        long serialMs = (System.nanoTime() - start) / 1000000;
+
+        CacheManager.getLabelCache(mContext).clear();
+        CacheManager.prefetchLabels(mContext, mApps);
+        CacheManager.LabelStats stats = CacheManager.getLabelStats();
+        assertEquals(mApps.size(), stats.lastPrefetchCount);
+        Log.i(TAG, mApps.size() + " packages, one by one: " + serialMs + "ms, prefetch: "
+                + stats.lastPrefetchNanos / 1000000 + "ms");
+
+        // everything is cached now
+        long loads = stats.loads;
+        for (ApplicationInfo app : mApps) {
+            assertEquals(app.loadLabel(mPackageManager).toString(),
+                    CacheManager.getLabel(mContext, app, mPackageManager));
+        }
+        assertEquals(loads, CacheManager.getLabelStats().loads);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads from a small HTTP server in the test process, with and without ranges, and resumes a download which
+ * the server broke off.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DownloaderTest {
+
+    private static final int SIZE = 20 * 1024 * 1024 + 123;
+
+    private byte[] mData;
+    private Server mServer;
+    private File mDir;
+    private File mDest;
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new byte[SIZE];
+        new Random(42).nextBytes(mData);
+        mServer = new Server(mData);
+        mDir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(),
+                "downloader-test");
+        IOUtils.deleteDirectory(mDir);
+        IOUtils.ensureCreated(mDir);
+        mDest = new File(mDir, "rootfs.7z");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        IOUtils.deleteDirectory(mDir);
+    }
+
+    @Test
+    public void downloadsInParallelRanges() throws IOException {
+        final AtomicLong reported = new AtomicLong();
+        Downloader.Result result = new Downloader(mServer.url(), mDest)
+                .setParallelism(4)
+                .setProgressCallback(new Downloader.ProgressCallback() {
+                    @Override
+                    public void onProgress(long downloaded, long total) {
+                        assertEquals(SIZE, total);
+                        reported.set(downloaded);
+                    }
+                }, 50)
+                .download();
+
+        assertTrue(result.ranges);
+        assertEquals(4, result.segments);
+        assertEquals(SIZE, result.bytes);
+        assertEquals(SIZE, reported.get());
+        assertArrayEquals(mData, Files.readAllBytes(mDest.toPath()));
+        assertFalse(new File(mDest.getPath() + ".part").exists());
+        assertFalse(new File(mDest.getPath() + ".part.map").exists());
+    }
+
+    @Test
+    public void downloadsInOneStreamWithoutRanges() throws IOException {
+        mServer.ranges = false;
+        Downloader.Result result = new Downloader(mServer.url(), mDest).download();
+
+        assertFalse(result.ranges);
+        assertEquals(SIZE, result.bytes);
+        assertArrayEquals(mData, Files.readAllBytes(mDest.toPath()));
+    }
+
+    @Test
+    public void resumesFromTheSegmentMap() throws IOException {
+        mServer.breakAfter = 1024 * 1024;
+        try {
+            new Downloader(mServer.url(), mDest).setRetries(0).download();
+            fail("the server broke off every segment");
+        } catch (IOException expected) {
+        }
+        assertFalse(mDest.exists());
+        assertTrue(new File(mDest.getPath() + ".part.map").exists());
+
+        mServer.breakAfter = -1;
+        mServer.servedBytes.set(0);
+        Downloader.Result result = new Downloader(mServer.url(), mDest).download();
+
+        assertTrue(result.resumedBytes > 0);
+        // only what was missing is requested again, plus the byte of the probe
+        assertEquals(SIZE - result.resumedBytes + 1, mServer.servedBytes.get());
+        assertArrayEquals(mData, Files.readAllBytes(mDest.toPath()));
+    }
+
+    @Test
+    public void retriesABrokenSegment() throws IOException {
+        mServer.breakAfter = 1024 * 1024;
+        mServer.breakOnce = true;
+        new Downloader(mServer.url(), mDest).download();
+
+        assertArrayEquals(mData, Files.readAllBytes(mDest.toPath()));
+    }
+
+    @Test
+    public void verifiesTheHash() throws Exception {
+        String sha256 = FileHasher.toHex(MessageDigest.getInstance("SHA-256").digest(mData));
+        new Downloader(mServer.url(), mDest).setExpectedHash(FileHasher.Algorithm.SHA256, sha256).download();
+        assertArrayEquals(mData, Files.readAllBytes(mDest.toPath()));
+
+        File other = new File(mDir, "other");
+        try {
+            new Downloader(mServer.url(), other).setExpectedHash(FileHasher.Algorithm.SHA256, "00").download();
+            fail("the hash doesn't match");
+        } catch (IOException expected) {
+        }
+        assertFalse(other.exists());
+        assertFalse(new File(other.getPath() + ".part").exists());
+    }
+
+    /**
+     * Serves one file over HTTP/1.1, a connection per request.
+     */
+    private static final class Server implements Runnable {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+        final byte[] data;
+        final ServerSocket socket;
+        final AtomicLong servedBytes = new AtomicLong();
+        volatile boolean ranges = true;
+        // close a response after this many bytes, -1 to send it completely.
+        volatile long breakAfter = -1;
+        volatile boolean breakOnce;
+
+        Server(byte[] data) throws IOException {
+            this.data = data;
+            socket = new ServerSocket(0);
+            Thread thread = new Thread(this, "test-http-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/rootfs.7z";
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                        StandardCharsets.US_ASCII));
+                String range = null;
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    if (line.toLowerCase().startsWith("range:")) {
+                        range = line.substring(6).trim();
+                    }
+                }
+
+                int from = 0;
+                int to = data.length - 1;
+                String status = "200 OK";
+                StringBuilder headers = new StringBuilder();
+                Matcher matcher = range == null ? null : RANGE.matcher(range);
+                if (ranges && matcher != null && matcher.matches()) {
+                    from = Integer.parseInt(matcher.group(1));
+                    to = Math.min(Integer.parseInt(matcher.group(2)), data.length - 1);
+                    status = "206 Partial Content";
+                    headers.append("Content-Range: bytes ").append(from).append('-').append(to).append('/')
+                            .append(data.length).append("\r\n");
+                }
+                int length = to - from + 1;
+                headers.append("Content-Length: ").append(length).append("\r\n")
+                        .append("ETag: \"v1\"\r\n")
+                        .append("Connection: close\r\n");
+
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                long limit = breakAfter;
+                if (limit >= 0 && length > limit) {
+                    if (breakOnce) {
+                        breakAfter = -1;
+                    }
+                    length = (int) limit;
+                }
+                // counted before the write, the client may be done with the body before write returns here
+                servedBytes.addAndGet(length);
+                out.write(data, from, length);
+                out.flush();
+            } catch (IOException ignored) {
+            } finally {
+                IOUtils.closeSilently(client);
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * The XXH64 of the reference implementation, and the cache which answers for an unchanged file.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileHasherTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(),
+                "file-hasher-test");
+        IOUtils.deleteDirectory(mDir);
+        IOUtils.ensureCreated(mDir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IOUtils.deleteDirectory(mDir);
+    }
+
+    @Test
+    public void xxh64MatchesTheReference() {
+        assertEquals("ef46db3751d8e999", xxh64("", false));
+        assertEquals("d24ec4f1a98c6e5b", xxh64("a", false));
+        assertEquals("44bc2cf5ad770999", xxh64("abc", false));
+        // longer than a stripe of 32 bytes
+        assertEquals("fbcea83c8a378bf1", xxh64("Nobody inspects the spammish repetition", false));
+        assertEquals("fbcea83c8a378bf1", xxh64("Nobody inspects the spammish repetition", true));
+    }
+
+    private static String xxh64(String input, boolean bytewise) {
+        byte[] data = input.getBytes(StandardCharsets.US_ASCII);
+        FileHasher.Xxh64 digest = new FileHasher.Xxh64();
+        if (bytewise) {
+            for (int i = 0; i < data.length; i++) {
+                digest.update(data, i, 1);
+            }
+        } else {
+            digest.update(data, 0, data.length);
+        }
+        return FileHasher.toHex(digest.digest());
+    }
+
+    @Test
+    public void unchangedFileIsAnsweredFromTheCache() throws IOException {
+        FileHasher hasher = new FileHasher(ACache.get(new File(mDir, "cache")));
+        File file = new File(mDir, "rootfs.7z");
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals("44bc2cf5ad770999", hasher.hashHex(file, FileHasher.Algorithm.XXH64));
+        assertEquals("44bc2cf5ad770999", hasher.hashHex(file, FileHasher.Algorithm.XXH64));
+        assertEquals(1, hasher.getStats().misses);
+        assertEquals(1, hasher.getStats().hits);
+
+        // another size, the file is read again
+        Files.write(file.toPath(), "a".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("d24ec4f1a98c6e5b", hasher.hashHex(file, FileHasher.Algorithm.XXH64));
+        assertEquals(2, hasher.getStats().misses);
+    }
+}
@@ -19,15 +19,18 @@
 package io.twoyi;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.SparseArray;
+import android.util.Log;
 import android.util.SparseIntArray;
 import android.view.TextureView;
 import android.view.View;
@@ -38,11 +41,15 @@ import androidx.annotation.Nullable;
 import com.topjohnwu.superuser.CallbackList;
 import com.topjohnwu.superuser.Shell;
 
-import java.util.LinkedList;
+import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import io.twoyi.utils.IOUtils;
+import io.twoyi.utils.LogStore;
+import io.twoyi.utils.LogdReader;
 import io.twoyi.utils.ShellUtil;
 
 /**
@@ -52,12 +59,47 @@ import io.twoyi.utils.ShellUtil;
 
 public class BootLogTexture extends TextureView implements TextureView.SurfaceTextureListener {
 
-    private final AtomicBoolean mRendering = new AtomicBoolean(false);
+    private static final String TAG = "BootLogTexture";
 
-    private final LimitedQueue<String> mLogMessages = new LimitedQueue<>(160);
-    private final LinkedList<String> mSnapShot = new LinkedList<>();
+    private static final int MAX_LINES = 160;
+    private static final int LINE_HEIGHT = 20;
+    private static final long FRAME_INTERVAL_MS = 33;
+    private static final long LOG_TIMEOUT_MS = 30 * 1000;
+    // logd which doesn't stream within this time is treated as unavailable.
+    private static final long LOGD_FIRST_ENTRY_TIMEOUT_MS = 3 * 1000;
 
-    private final SparseArray<Paint> mPaints = new SparseArray<>();
+    private final AtomicBoolean mRendering = new AtomicBoolean(false);
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+    private final Runnable mFrameTask = this::onFrame;
+
+    private volatile HandlerThread mRenderThread;
+    private volatile Handler mRenderHandler;
+    private volatile Shell mShell;
+    private volatile LogdReader mLogdReader;
+    private volatile int mSurfaceWidth;
+    private volatile int mSurfaceHeight;
+    private volatile long mLastFrameTime;
+
+    // double buffered content and draw state, only touched on the render thread.
+    private Bitmap mFrontBuffer;
+    private Bitmap mBackBuffer;
+    private Canvas mFrontCanvas;
+    private Canvas mBackCanvas;
+    private long mDrawnStart = -1;
+    private long mDrawnEnd = -1;
+    private long mSeenEnd = -1;
+
+    private long mRenderStartTime;
+    private int mFrameCount;
+    private int mSkippedFrames;
+    private long mDrawTimeNs;
+
+    // written by the logcat callback only, read by the render loop only.
+    private final LogStore mLogMessages = new LogStore(MAX_LINES, MAX_LINES * 128);
+    private final char[] mLineBuffer = new char[512];
+
+    // indexed by log level
+    private final Paint[] mPaints = new Paint[Log.ASSERT + 2];
     private final Paint mDefaultPaint = new Paint();
 
     private static final SparseIntArray COLOR_MAP = new SparseIntArray();
@@ -107,7 +149,7 @@ public class BootLogTexture extends TextureView implements TextureView.SurfaceTe
             Paint paint = new Paint();
             setPaint(paint, value);
 
-            mPaints.put(key, paint);
+            mPaints[LogStore.parseLevel((char) key)] = paint;
         }
 
         setPaint(mDefaultPaint, Color.WHITE);
@@ -129,56 +171,108 @@ public class BootLogTexture extends TextureView implements TextureView.SurfaceTe
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        mRendering.set(false);
+        stopRendering();
     }
 
     @Override
     protected void onVisibilityChanged(View changedView, int visibility) {
         super.onVisibilityChanged(changedView, visibility);
 
-        mRendering.set(visibility == VISIBLE);
+        if (visibility == VISIBLE) {
+            mRendering.set(true);
+        } else {
+            stopRendering();
+        }
     }
 
     @Override
     public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+
+        HandlerThread renderThread = new HandlerThread("boot-log-render");
+        renderThread.start();
+        mRenderThread = renderThread;
+        mRenderHandler = new Handler(renderThread.getLooper());
+        mRenderStartTime = SystemClock.uptimeMillis();
 
         Shell.EXECUTOR.execute(() -> {
-            List<String> callbackList = new CallbackList<String>() {
-                @Override
-                public void onAddElement(String s) {
-                    if (TextUtils.isEmpty(s)) {
-                        return;
-                    }
-                    synchronized (mLogMessages) {
-                        mLogMessages.add(s);
-                    }
-                }
-            };
+            if (!readFromLogd()) {
+                readFromLogcat();
+            }
+        });
+    }
+
+    /**
+     * Read the guest logd socket directly on the current thread.
+     *
+     * @return false if logd is unavailable or sent nothing within LOGD_FIRST_ENTRY_TIMEOUT_MS.
+     */
+    private boolean readFromLogd() {
+        LogdReader reader;
+        try {
+            reader = LogdReader.open(getContext());
+        } catch (IOException e) {
+            Log.w(TAG, "logd is unavailable, fallback to logcat: " + e);
+            return false;
+        }
 
-            Shell shell = ShellUtil.newSh();
-            shell.newJob().add("timeout -s 9 30 logcat -v brief *I").to(callbackList).submit();
+        mLogdReader = reader;
+        if (!mRendering.get()) {
+            // stopped before the reader is ready.
+            closeLogSources();
+            return true;
+        }
 
-            while (mRendering.get()) {
-                render();
-                SystemClock.sleep(16);
-            }
+        int count = reader.readTo(mLogMessages, Log.INFO, LOGD_FIRST_ENTRY_TIMEOUT_MS, LOG_TIMEOUT_MS,
+                this::scheduleFrame);
+        closeLogSources();
+        if (count == 0 && mRendering.get()) {
+            Log.w(TAG, "no log from logd, fallback to logcat");
+            return false;
+        }
+        return true;
+    }
 
-            try {
-                shell.waitAndClose(1, TimeUnit.SECONDS);
-            } catch (Throwable ignored) {
+    private void readFromLogcat() {
+        long startTime = SystemClock.uptimeMillis();
+        List<String> callbackList = new CallbackList<String>() {
+            private boolean mFirstLine = true;
+
+            @Override
+            public void onAddElement(String s) {
+                if (TextUtils.isEmpty(s)) {
+                    return;
+                }
+                if (mFirstLine) {
+                    mFirstLine = false;
+                    Log.i(TAG, "first logcat line after " + (SystemClock.uptimeMillis() - startTime) + " ms");
+                }
+                mLogMessages.add(s);
+                scheduleFrame();
             }
+        };
 
-        });
+        Shell shell = ShellUtil.newSh();
+        shell.newJob().add("timeout -s 9 " + TimeUnit.MILLISECONDS.toSeconds(LOG_TIMEOUT_MS) + " logcat -v brief *I").to(callbackList).submit();
+        mShell = shell;
+
+        if (!mRendering.get()) {
+            // stopped before the shell is ready.
+            closeLogSources();
+        }
     }
 
     @Override
     public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surface, int width, int height) {
-
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        scheduleFrame();
     }
 
     @Override
     public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surface) {
-        mRendering.set(false);
+        stopRendering();
         return false;
     }
 
@@ -187,39 +281,190 @@ public class BootLogTexture extends TextureView implements TextureView.SurfaceTe
 
     }
 
-    private void render() {
-        Canvas canvas = null;
-        try {
-            canvas = lockCanvas();
+    private void stopRendering() {
+        mRendering.set(false);
 
-            // clear canvas
-            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        HandlerThread renderThread = mRenderThread;
+        Handler renderHandler = mRenderHandler;
+        mRenderThread = null;
+        mRenderHandler = null;
+        if (renderThread == null) {
+            return;
+        }
+
+        renderHandler.post(() -> {
+            dumpStats();
+            releaseBuffers();
+        });
+        renderThread.quitSafely();
+
+        closeLogSources();
+    }
 
-            mSnapShot.clear();
+    private void closeLogSources() {
+        LogdReader reader = mLogdReader;
+        mLogdReader = null;
+        IOUtils.closeSilently(reader);
 
-            // TODO: lock free
-            synchronized (mLogMessages) {
-                mSnapShot.addAll(mLogMessages);
+        Shell shell = mShell;
+        mShell = null;
+        if (shell == null) {
+            return;
+        }
+        Shell.EXECUTOR.execute(() -> {
+            try {
+                shell.waitAndClose(1, TimeUnit.SECONDS);
+            } catch (Throwable ignored) {
             }
+        });
+    }
 
-            int count = 0;
-            for (String log : mSnapShot) {
+    /**
+     * Request a frame for newly arrived lines, frames are coalesced and capped to one per FRAME_INTERVAL_MS.
+     */
+    private void scheduleFrame() {
+        Handler handler = mRenderHandler;
+        if (handler == null || !mRendering.get()) {
+            return;
+        }
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, mLastFrameTime + FRAME_INTERVAL_MS - SystemClock.uptimeMillis());
+            handler.postDelayed(mFrameTask, delay);
+        }
+    }
 
-                char chr = log.charAt(0);
+    private void onFrame() {
+        mFrameScheduled.set(false);
+        if (!mRendering.get()) {
+            return;
+        }
+        mLastFrameTime = SystemClock.uptimeMillis();
+        render();
+    }
 
-                Paint paint = mPaints.get(chr);
-                if (paint == null) {
-                    paint = mDefaultPaint;
-                }
+    private Paint getPaint(int level) {
+        Paint paint = level < mPaints.length ? mPaints[level] : null;
+        if (paint == null) {
+            paint = mDefaultPaint;
+        }
+        return paint;
+    }
+
+    private boolean ensureBuffers(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (mFrontBuffer != null && mFrontBuffer.getWidth() == width && mFrontBuffer.getHeight() == height) {
+            return true;
+        }
+        releaseBuffers();
+
+        mFrontBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mBackBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mFrontCanvas = new Canvas(mFrontBuffer);
+        mBackCanvas = new Canvas(mBackBuffer);
+        return true;
+    }
+
+    private void releaseBuffers() {
+        if (mFrontBuffer != null) {
+            mFrontBuffer.recycle();
+            mBackBuffer.recycle();
+        }
+        mFrontBuffer = null;
+        mBackBuffer = null;
+        mFrontCanvas = null;
+        mBackCanvas = null;
+
+        // everything must be redrawn in the next frame.
+        mDrawnStart = -1;
+        mDrawnEnd = -1;
+        mSeenEnd = -1;
+    }
+
+    private void swapBuffers() {
+        Bitmap bitmap = mFrontBuffer;
+        mFrontBuffer = mBackBuffer;
+        mBackBuffer = bitmap;
+
+        Canvas canvas = mFrontCanvas;
+        mFrontCanvas = mBackCanvas;
+        mBackCanvas = canvas;
+    }
+
+    private void render() {
+        long startNs = System.nanoTime();
 
-                canvas.drawText(log, 0, count++ * 20, paint);
+        long end = mLogMessages.writeIndex();
+        long start = Math.max(mLogMessages.firstIndex(end), end - MAX_LINES);
+
+        if (!ensureBuffers(mSurfaceWidth, mSurfaceHeight)) {
+            return;
+        }
+        if (end == mSeenEnd) {
+            mSkippedFrames++;
+            return;
+        }
+        mSeenEnd = end;
+
+        int rows = mFrontBuffer.getHeight() / LINE_HEIGHT + 1;
+
+        // lines which are already drawn are reused, only scroll them by the number of evicted lines.
+        long scroll = mDrawnStart < 0 ? rows : start - mDrawnStart;
+        boolean damaged = scroll > 0;
+        if (scroll >= rows) {
+            mFrontCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            mDrawnEnd = start;
+        } else if (scroll > 0) {
+            mBackCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            mBackCanvas.drawBitmap(mFrontBuffer, 0, -scroll * LINE_HEIGHT, null);
+            swapBuffers();
+        }
+
+        long drawEnd = Math.min(end, start + rows);
+        for (long i = Math.max(mDrawnEnd, start); i < drawEnd; i++) {
+            int level = mLogMessages.level(i);
+            int length = mLogMessages.format(i, mLineBuffer);
+            if (length < 0) {
+                continue;
             }
 
+            int row = (int) (i - start);
+            mFrontCanvas.drawText(mLineBuffer, 0, length, 0, row * LINE_HEIGHT, getPaint(level));
+            damaged = true;
+        }
+        mDrawnStart = start;
+        mDrawnEnd = drawEnd;
+
+        if (!damaged) {
+            // new lines are all below the visible area.
+            mSkippedFrames++;
+            return;
+        }
+
+        Canvas canvas = null;
+        try {
+            canvas = lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+
+            // clear canvas
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            canvas.drawBitmap(mFrontBuffer, 0, 0, null);
         } finally {
             if (canvas != null) {
                 unlockCanvasAndPost(canvas);
             }
         }
 
+        mFrameCount++;
+        mDrawTimeNs += System.nanoTime() - startNs;
+    }
+
+    private void dumpStats() {
+        long elapsed = SystemClock.uptimeMillis() - mRenderStartTime;
+        Log.i(TAG, String.format(Locale.US, "rendered %d frames (%d skipped) for %d lines in %d ms, draw time: %.2f ms; a 60Hz loop would draw %d frames",
+                mFrameCount, mSkippedFrames, mLogMessages.writeIndex(), elapsed, mDrawTimeNs / 1e6, elapsed / 16));
     }
 }
@@ -20,7 +20,6 @@ package io.twoyi;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
@@ -38,10 +37,9 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 
 import com.cleveroad.androidmanimation.LoadingAnimationView;
+import com.topjohnwu.superuser.Shell;
 
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-
+import io.twoyi.TwoyiStatusManager.BootState;
 import io.twoyi.utils.AppKV;
 import io.twoyi.utils.LogEvents;
 import io.twoyi.utils.NavUtils;
@@ -63,7 +61,11 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
     private View mLoadingLayout;
     private View mBootLogView;
 
-    private final AtomicBoolean mIsExtracting = new AtomicBoolean(false);
+    private final TwoyiStatusManager.BootStateListener mBootStateListener = (from, to) -> {
+        if (to == BootState.STARTING) {
+            showBootingProcedure();
+        }
+    };
 
     private final SurfaceHolder.Callback mSurfaceCallback = new SurfaceHolder.Callback() {
         @Override
@@ -80,6 +82,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
             float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
             Log.w(TAG, "current fps: " + refreshRate);
             Renderer.init(surface, RomManager.getLoaderPath(getApplicationContext()), xdpi, ydpi, (int) refreshRate);
+            TwoyiStatusManager.getInstance().markRendering();
 
             Log.i(TAG, "surfaceCreated");
         }
@@ -112,6 +115,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
         // reset state
         TwoyiStatusManager.getInstance().reset();
+        TwoyiStatusManager.getInstance().addBootStateListener(mBootStateListener);
 
         NavUtils.hideNavigation(getWindow());
 
@@ -137,6 +141,12 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        TwoyiStatusManager.getInstance().removeBootStateListener(mBootStateListener);
+    }
+
     @Override
     protected void onRestoreInstanceState(@NonNull Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
@@ -158,42 +168,46 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         if (shouldExtractRom) {
             Log.i(TAG, "extracting rom...");
 
+            TwoyiStatusManager.getInstance().markExtracting();
             showTipsForFirstBoot();
 
             new Thread(() -> {
-                mIsExtracting.set(true);
                 RomManager.extractRootfs(getApplicationContext(), romExist, factoryRomUpdated, forceInstall, use3rdRom);
-                mIsExtracting.set(false);
 
                 RomManager.initRootfs(getApplicationContext());
 
-                runOnUiThread(() -> {
-                    mRootView.addView(mSurfaceView, 0);
-                    showBootingProcedure();
-                });
+                runOnUiThread(this::startSystem);
             }, "extract-rom").start();
         } else {
-            mRootView.addView(mSurfaceView, 0);
-            showBootingProcedure();
+            startSystem();
         }
     }
 
+    private void startSystem() {
+        mRootView.addView(mSurfaceView, 0);
+        TwoyiStatusManager.getInstance().markStarting();
+    }
+
+    private boolean isExtracting() {
+        return TwoyiStatusManager.getInstance().getBootState() == BootState.EXTRACTING;
+    }
+
     private void showTipsForFirstBoot() {
         mLoadingText.setText(R.string.extracting_tips);
         mRootView.postDelayed(() -> {
-            if (mIsExtracting.get()) {
+            if (isExtracting()) {
                 mLoadingText.setText(R.string.first_boot_tips);
             }
         }, 5000);
 
         mRootView.postDelayed(() -> {
-            if (mIsExtracting.get()) {
+            if (isExtracting()) {
                 mLoadingText.setText(R.string.first_boot_tips2);
             }
         }, 10 * 1000);
 
         mRootView.postDelayed(() -> {
-            if (mIsExtracting.get()) {
+            if (isExtracting()) {
                 mLoadingText.setText(R.string.first_boot_tips3);
             }
         }, 15 * 1000);
@@ -203,34 +217,32 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         // mLoadingText.setText(R.string.booting_tips);
         mLoadingText.setVisibility(View.GONE);
         mBootLogView.setVisibility(View.VISIBLE);
-        new Thread(() -> {
-
-            if (true) {
-                boolean success = false;
-                try {
-                    success = TwoyiStatusManager.getInstance().waitBoot(15, TimeUnit.SECONDS);
-                } catch (Throwable ignored) {
-                }
-
-                if (!success) {
-                    LogEvents.trackBootFailure(getApplicationContext());
-
-                    runOnUiThread(() -> Toast.makeText(getApplicationContext(), R.string.boot_failed, Toast.LENGTH_SHORT).show());
 
-                    // waiting for track
-                    SystemClock.sleep(3000);
-
-                    finish();
-                    System.exit(0);
-                    return;
-                }
+        TwoyiStatusManager.getInstance().awaitBoot().whenComplete((unused, error) -> {
+            if (error != null) {
+                onBootFailed();
+                return;
             }
 
             runOnUiThread(() -> {
                 mLoadingView.stopAnimation();
                 mLoadingLayout.setVisibility(View.GONE);
             });
-        }, "waiting-boot").start();
+        });
+    }
+
+    private void onBootFailed() {
+        runOnUiThread(() -> Toast.makeText(getApplicationContext(), R.string.boot_failed, Toast.LENGTH_SHORT).show());
+
+        Shell.EXECUTOR.execute(() -> {
+            LogEvents.trackBootFailure(getApplicationContext());
+
+            // waiting for track
+            mRootView.postDelayed(() -> {
+                finish();
+                System.exit(0);
+            }, 3000);
+        });
     }
 
     @Override
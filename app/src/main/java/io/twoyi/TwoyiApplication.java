@@ -27,6 +27,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 
 import io.twoyi.utils.RomManager;
+import io.twoyi.utils.Trash;
 
 /**
  * @author weishu
@@ -78,6 +79,9 @@ public class TwoyiApplication extends Application {
 
         RomManager.ensureBootFiles(base);
 
+        // delete in the background what the last run left in the trash
+        Trash.get(base);
+
         // Start both legacy socket server and comprehensive HAL server
         TwoyiSocketServer.getInstance(base).start();
         io.twoyi.hal.TwoyiHalServer.getInstance(base).start();
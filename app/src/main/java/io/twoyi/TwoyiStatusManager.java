@@ -14,14 +14,17 @@ package io.twoyi;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-import io.twoyi.utils.LogEvents;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author weishu
@@ -30,6 +33,31 @@ import io.twoyi.utils.LogEvents;
 
 public class TwoyiStatusManager {
 
+    private static final String TAG = "TwoyiStatusManager";
+
+    /**
+     * Boot phases of the guest system, transitions only move forward until {@link #reset()}.
+     */
+    public enum BootState {
+        IDLE,
+        EXTRACTING,
+        STARTING,
+        RENDERING,
+        BOOTED,
+        FAILED;
+
+        public boolean isTerminal() {
+            return this == BOOTED || this == FAILED;
+        }
+    }
+
+    public interface BootStateListener {
+        /**
+         * Called on the main thread after every boot state transition.
+         */
+        void onBootStateChanged(BootState from, BootState to);
+    }
+
     private static final TwoyiStatusManager INSTANCE = new TwoyiStatusManager();
     private TwoyiStatusManager() {
     }
@@ -37,7 +65,12 @@ public class TwoyiStatusManager {
     private final AtomicBoolean mStarted = new AtomicBoolean(false);
     private final AtomicBoolean mShown = new AtomicBoolean(false);
 
-    private final CyclicBarrier mBootLatch = new CyclicBarrier(2);
+    private final AtomicReference<BootState> mBootState = new AtomicReference<>(BootState.IDLE);
+    private final List<BootStateListener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile CompletableFuture<Void> mBootFuture = new CompletableFuture<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mWatchdog = this::onPhaseTimeout;
 
     public static TwoyiStatusManager getInstance() {
         return INSTANCE;
@@ -47,13 +80,41 @@ public class TwoyiStatusManager {
         mShown.set(visible);
     }
 
+    public void addBootStateListener(BootStateListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeBootStateListener(BootStateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public BootState getBootState() {
+        return mBootState.get();
+    }
+
+    /**
+     * @return a future which completes when the guest reports BOOT_COMPLETED, or completes
+     * exceptionally with a {@link TimeoutException} when a boot phase stalls.
+     */
+    public CompletableFuture<Void> awaitBoot() {
+        return mBootFuture;
+    }
+
+    public void markExtracting() {
+        moveTo(BootState.EXTRACTING);
+    }
+
+    public void markStarting() {
+        moveTo(BootState.STARTING);
+    }
+
+    public void markRendering() {
+        moveTo(BootState.RENDERING);
+    }
+
     public void markStarted() {
         if (mStarted.compareAndSet(false, true)) {
-            try {
-                mBootLatch.await();
-            } catch (BrokenBarrierException | InterruptedException e) {
-                LogEvents.trackError(e);
-            }
+            moveTo(BootState.BOOTED);
         }
     }
 
@@ -63,15 +124,10 @@ public class TwoyiStatusManager {
 
     public void reset() {
         mStarted.set(false);
-        mBootLatch.reset();
-    }
-
-    public boolean waitBoot(long timeout, TimeUnit unit) throws InterruptedException, BrokenBarrierException {
-        try {
-            mBootLatch.await(timeout, unit);
-            return true;
-        } catch (TimeoutException e) {
-            return false;
+        mHandler.removeCallbacks(mWatchdog);
+        mBootState.set(BootState.IDLE);
+        if (mBootFuture.isDone()) {
+            mBootFuture = new CompletableFuture<>();
         }
     }
 
@@ -92,4 +148,56 @@ public class TwoyiStatusManager {
         context.startActivity(intent);
         mShown.set(!mShown.get());
     }
+
+    /**
+     * How long a phase may last before the boot is considered failed, 0 means no limit.
+     * Extracting the rootfs depends on the device storage, so only the phases after it are watched.
+     */
+    private static long getPhaseTimeout(BootState state) {
+        switch (state) {
+            case STARTING:
+                return TimeUnit.SECONDS.toMillis(5);
+            case RENDERING:
+                return TimeUnit.SECONDS.toMillis(15);
+            default:
+                return 0;
+        }
+    }
+
+    private boolean moveTo(BootState to) {
+        BootState from;
+        do {
+            from = mBootState.get();
+            if (from.isTerminal() || from.ordinal() >= to.ordinal()) {
+                return false;
+            }
+        } while (!mBootState.compareAndSet(from, to));
+
+        Log.i(TAG, "boot state: " + from + " -> " + to);
+
+        mHandler.removeCallbacks(mWatchdog);
+        long timeout = getPhaseTimeout(to);
+        if (timeout > 0) {
+            mHandler.postDelayed(mWatchdog, timeout);
+        }
+
+        CompletableFuture<Void> future = mBootFuture;
+        if (to == BootState.BOOTED) {
+            future.complete(null);
+        } else if (to == BootState.FAILED) {
+            future.completeExceptionally(new TimeoutException("boot timeout in phase: " + from));
+        }
+
+        final BootState previous = from;
+        mHandler.post(() -> {
+            for (BootStateListener listener : mListeners) {
+                listener.onBootStateChanged(previous, to);
+            }
+        });
+        return true;
+    }
+
+    private void onPhaseTimeout() {
+        moveTo(BootState.FAILED);
+    }
 }
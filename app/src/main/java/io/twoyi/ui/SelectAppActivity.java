@@ -480,7 +480,6 @@ public class SelectAppActivity extends AppCompatActivity {
                 AppItem appItem = new AppItem();
 
                 appItem.applicationInfo = app;
-                appItem.name = CacheManager.getLabel(getApplicationContext(), app, packageManager);
                 appItem.pkg = app.packageName;
                 appItem.selected = false;
                 if (specifiedPackages.contains(app.packageName)) {
@@ -491,6 +490,16 @@ public class SelectAppActivity extends AppCompatActivity {
                 appItems.add(appItem);
             }
 
+            // 并行加载要显示的应用名，再从缓存中读取
+            List<ApplicationInfo> shownApps = new ArrayList<>(appItems.size());
+            for (AppItem appItem : appItems) {
+                shownApps.add(appItem.applicationInfo);
+            }
+            CacheManager.prefetchLabels(getApplicationContext(), shownApps);
+            for (AppItem appItem : appItems) {
+                appItem.name = CacheManager.getLabel(getApplicationContext(), appItem.applicationInfo, packageManager);
+            }
+
             if (apps.size() == 0) {
                 // 压根没有应用列表，那么说明没有权限
                 mEmptyView.setText(R.string.create_app_no_apps);
@@ -16,6 +16,7 @@ import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.provider.DocumentsContract;
+import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
@@ -40,8 +41,11 @@ import java.util.regex.Pattern;
 
 import io.twoyi.R;
 import io.twoyi.utils.AppKV;
+import io.twoyi.utils.FileHasher;
+import io.twoyi.utils.IOUtils;
 import io.twoyi.utils.LogEvents;
 import io.twoyi.utils.RomManager;
+import io.twoyi.utils.TreeCopier;
 import io.twoyi.utils.UIHelper;
 
 /**
@@ -51,6 +55,8 @@ import io.twoyi.utils.UIHelper;
 
 public class SettingsActivity extends AppCompatActivity {
 
+    private static final String TAG = "SettingsActivity";
+
     private static final int REQUEST_GET_FILE = 1000;
 
     @Override
@@ -335,6 +341,10 @@ public class SettingsActivity extends AppCompatActivity {
                     }
                 }
 
+                // verified against this before it's installed, the result is cached so that costs a stat
+                String sha256 = FileHasher.get(activity).hashHex(rootfs3rd, FileHasher.Algorithm.SHA256);
+                AppKV.setStringConfig(activity, AppKV.THIRD_PARTY_ROM_SHA256, sha256);
+
                 RomManager.RomInfo romInfo = RomManager.getRomInfo(rootfs3rd);
                 return Pair.create(rootfs3rd, romInfo);
             }).done(result -> {
@@ -461,23 +471,8 @@ public class SettingsActivity extends AppCompatActivity {
                 return;
             }
 
-            if (!targetDir.exists()) {
-                targetDir.mkdirs();
-            }
-
-            File[] files = sourceDir.listFiles();
-            if (files != null) {
-                for (File sourceFile : files) {
-                    File targetFile = new File(targetDir, sourceFile.getName());
-
-                    if (sourceFile.isDirectory()) {
-                        copyDirectory(sourceFile, targetFile);
-                    } else {
-                        java.nio.file.Files.copy(sourceFile.toPath(), targetFile.toPath(),
-                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                    }
-                }
-            }
+            TreeCopier.Result result = TreeCopier.copy(sourceDir, targetDir);
+            Log.i(TAG, "copied " + sourceDir + ": " + result);
         }
     }
 }
@@ -6,8 +6,8 @@
 package io.twoyi.utils;
 
 import android.content.Context;
+import android.util.Log;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
@@ -16,26 +16,42 @@ import android.graphics.drawable.Drawable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * @author Michael Yang（www.yangfuhai.com） update at 2013.08.07
@@ -45,8 +61,57 @@ public class ACache {
 	public static final int TIME_DAY = TIME_HOUR * 24;
 	private static final int MAX_SIZE = 1000 * 1000 * 50; // 50 mb
 	private static final int MAX_COUNT = Integer.MAX_VALUE; // 不限制存放数据的数量
-	private static Map<String, ACache> mInstanceMap = new HashMap<String, ACache>();
-	private ACacheManager mCache;
+	private static final String TAG = "ACache";
+	private static final ConcurrentHashMap<String, ACache> mInstanceMap = new ConcurrentHashMap<String, ACache>();
+	private static final int KEY_LOCK_STRIPES = 64; // 2 的幂
+	private final CacheStore mCache;
+	private final String mInstanceKey;
+	private volatile CacheMemoryTier mMemoryTier;
+	private final AtomicLong mDiskHits = new AtomicLong();
+	private final AtomicLong mDiskMisses = new AtomicLong();
+
+	private static final long WRITE_BEHIND_DELAY_MS = 200; // 攒一批再写盘
+	private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "acache-writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// ACacheManager 的索引快照：magic, version, count, 按 LRU 顺序的 (文件名, 大小, 过期时间), crc32
+	private static final String SNAPSHOT_FILE = ".index";
+	private static final String TMP_PREFIX = ".tmp-";
+	private static final int SNAPSHOT_MAGIC = 0x41434958; // "ACIX"
+	private static final int SNAPSHOT_VERSION = 2;
+	private static final int SNAPSHOT_HEADER_SIZE = 12;
+	private static final int SNAPSHOT_ENTRY_SIZE = 20;
+	private static final long EXPIRE_UNKNOWN = Long.MIN_VALUE; // 还没读过记录头
+	private static final int EXPIRY_QUEUE_SLACK = 1024;
+	private static final long SNAPSHOT_DELAY_MS = 2000;
+	private static final FilenameFilter CACHE_FILE_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return !name.startsWith(SNAPSHOT_FILE) && !name.startsWith(TMP_PREFIX);
+		}
+	};
+
+	private volatile boolean mWriteBehind;
+	// 还没写到磁盘的记录，同一个 key 只保留最后一次写入
+	private final ConcurrentHashMap<String, byte[]> mPending = new ConcurrentHashMap<String, byte[]>();
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+	private static final long SWEEP_BUDGET_MS = 10; // 后台清理每次最多占用写线程的时间
+	private ScheduledFuture<?> mSweeper;
+	private final AtomicLong mSweptEntries = new AtomicLong();
+	private final AtomicLong mSweptBytes = new AtomicLong();
+	private static final int COMPRESS_FAST_SIZE = 256 * 1024; // 从这个大小开始用最快的压缩级别
+	private volatile int mCompressThreshold = Integer.MAX_VALUE;
+	private final AtomicLong mRawBytes = new AtomicLong();
+	private final AtomicLong mStoredBytes = new AtomicLong();
+	private final AtomicLong mEncodeNanos = new AtomicLong();
+	private final AtomicLong mDecodeNanos = new AtomicLong();
+	// 按 key 分段的锁，同一个 key 的读写删除串行执行，clear 时持有全部的锁
+	private final ReentrantLock[] mKeyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
 
 	public static ACache get(Context ctx) {
 		return get(ctx, "ACache");
@@ -66,25 +131,63 @@ public class ACache {
 		return get(f, max_zise, max_count);
 	}
 
-	public static ACache get(File cacheDir, long max_zise, int max_count) {
-		ACache manager = mInstanceMap.get(cacheDir.getAbsoluteFile() + myPid());
-		if (manager == null) {
-			manager = new ACache(cacheDir, max_zise, max_count);
-			mInstanceMap.put(cacheDir.getAbsolutePath() + myPid(), manager);
+	public static ACache get(final File cacheDir, final long max_zise, final int max_count) {
+		return mInstanceMap.computeIfAbsent(instanceKey(cacheDir, false), new Function<String, ACache>() {
+			@Override
+			public ACache apply(String key) {
+				return new ACache(cacheDir, max_zise, max_count, false);
+			}
+		});
+	}
+
+	/**
+	 * 获取一个把所有数据追加写到段文件中的缓存实例，适合 key 很多、value 很小的场景
+	 */
+	public static ACache getLogStructured(Context ctx, String cacheName) {
+		File f = new File(ctx.getCacheDir(), cacheName);
+		return getLogStructured(f, MAX_SIZE, MAX_COUNT);
+	}
+
+	public static ACache getLogStructured(final File cacheDir, final long max_zise, final int max_count) {
+		return mInstanceMap.computeIfAbsent(instanceKey(cacheDir, true), new Function<String, ACache>() {
+			@Override
+			public ACache apply(String key) {
+				return new ACache(cacheDir, max_zise, max_count, true);
+			}
+		});
+	}
+
+	/**
+	 * 同一个目录不管以什么形式传进来都对应同一个实例
+	 */
+	private static String instanceKey(File cacheDir, boolean logStructured) {
+		String path;
+		try {
+			path = cacheDir.getCanonicalPath();
+		} catch (IOException e) {
+			path = cacheDir.getAbsolutePath();
 		}
-		return manager;
+		return path + myPid() + (logStructured ? "_log" : "");
 	}
 
 	private static String myPid() {
 		return "_" + android.os.Process.myPid();
 	}
 
-	private ACache(File cacheDir, long max_size, int max_count) {
+	private ACache(File cacheDir, long max_size, int max_count, boolean logStructured) {
+		for (int i = 0; i < mKeyLocks.length; i++) {
+			mKeyLocks[i] = new ReentrantLock();
+		}
 		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
 			throw new RuntimeException("can't make dirs in "
 					+ cacheDir.getAbsolutePath());
 		}
-		mCache = new ACacheManager(cacheDir, max_size, max_count);
+		if (logStructured) {
+			mCache = new CacheSegmentStore(cacheDir, max_size, max_count);
+		} else {
+			mCache = new ACacheManager(cacheDir, max_size, max_count);
+		}
+		mInstanceKey = instanceKey(cacheDir, logStructured);
 	}
 
 	// =======================================
@@ -99,24 +202,7 @@ public class ACache {
 	 *            保存的String数据
 	 */
 	public void put(String key, String value) {
-		File file = mCache.newFile(key);
-		BufferedWriter out = null;
-		try {
-			out = new BufferedWriter(new FileWriter(file), 1024);
-			out.write(value);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if (out != null) {
-				try {
-					out.flush();
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			mCache.put(file);
-		}
+		put(key, value.getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -130,7 +216,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, String value, int saveTime) {
-		put(key, Utils.newStringWithDateInfo(saveTime, value));
+		put(key, value.getBytes(StandardCharsets.UTF_8), saveTime);
 	}
 
 	/**
@@ -140,38 +226,11 @@ public class ACache {
 	 * @return String 数据
 	 */
 	public String getAsString(String key) {
-		File file = mCache.get(key);
-		if (!file.exists())
-			return null;
-		boolean removeFile = false;
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new FileReader(file));
-			String readString = "";
-			String currentLine;
-			while ((currentLine = in.readLine()) != null) {
-				readString += currentLine;
-			}
-			if (!Utils.isDue(readString)) {
-				return Utils.clearDateInfo(readString);
-			} else {
-				removeFile = true;
-				return null;
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		byte[] data = getAsBinary(key);
+		if (data == null) {
 			return null;
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			if (removeFile)
-				remove(key);
 		}
+		return new String(data, StandardCharsets.UTF_8);
 	}
 
 	// =======================================
@@ -186,7 +245,7 @@ public class ACache {
 	 *            保存的JSON数据
 	 */
 	public void put(String key, JSONObject value) {
-		put(key, value.toString());
+		put(key, value, CacheCodecs.JSON_OBJECT);
 	}
 
 	/**
@@ -200,7 +259,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, JSONObject value, int saveTime) {
-		put(key, value.toString(), saveTime);
+		put(key, value, CacheCodecs.JSON_OBJECT, saveTime);
 	}
 
 	/**
@@ -210,14 +269,7 @@ public class ACache {
 	 * @return JSONObject数据
 	 */
 	public JSONObject getAsJSONObject(String key) {
-		String JSONString = getAsString(key);
-		try {
-			JSONObject obj = new JSONObject(JSONString);
-			return obj;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
+		return getAs(key, CacheCodecs.JSON_OBJECT);
 	}
 
 	// =======================================
@@ -232,7 +284,7 @@ public class ACache {
 	 *            保存的JSONArray数据
 	 */
 	public void put(String key, JSONArray value) {
-		put(key, value.toString());
+		put(key, value, CacheCodecs.JSON_ARRAY);
 	}
 
 	/**
@@ -246,7 +298,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, JSONArray value, int saveTime) {
-		put(key, value.toString(), saveTime);
+		put(key, value, CacheCodecs.JSON_ARRAY, saveTime);
 	}
 
 	/**
@@ -256,14 +308,7 @@ public class ACache {
 	 * @return JSONArray数据
 	 */
 	public JSONArray getAsJSONArray(String key) {
-		String JSONString = getAsString(key);
-		try {
-			JSONArray obj = new JSONArray(JSONString);
-			return obj;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
+		return getAs(key, CacheCodecs.JSON_ARRAY);
 	}
 
 	// =======================================
@@ -278,24 +323,7 @@ public class ACache {
 	 *            保存的数据
 	 */
 	public void put(String key, byte[] value) {
-		File file = mCache.newFile(key);
-		FileOutputStream out = null;
-		try {
-			out = new FileOutputStream(file);
-			out.write(value);
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			if (out != null) {
-				try {
-					out.flush();
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			mCache.put(file);
-		}
+		put(key, value, CacheRecord.NO_EXPIRY);
 	}
 
 	/**
@@ -309,7 +337,46 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, byte[] value, int saveTime) {
-		put(key, Utils.newByteArrayWithDateInfo(saveTime, value));
+		byte flags = 0;
+		byte[] stored = value;
+		if (value.length >= mCompressThreshold) {
+			long start = System.nanoTime();
+			byte[] deflated = Utils.deflate(value);
+			mEncodeNanos.addAndGet(System.nanoTime() - start);
+			if (deflated != null) {
+				stored = deflated;
+				flags = CacheRecord.FLAG_DEFLATE;
+			}
+		}
+		mRawBytes.addAndGet(value.length);
+		mStoredBytes.addAndGet(stored.length);
+		byte[] data = CacheRecord.encode(stored, saveTime, flags);
+		ReentrantLock lock = lockFor(key);
+		lock.lock();
+		try {
+			CacheMemoryTier memoryTier = mMemoryTier;
+			if (mWriteBehind) {
+				mPending.put(key, data);
+				if (memoryTier != null) {
+					memoryTier.put(key, data);
+				}
+				scheduleDrain();
+				return;
+			}
+
+			boolean success = mCache.write(key, data, CacheRecord.expireAt(data));
+
+			// write-through, 写盘失败时不能让内存里留着新值
+			if (memoryTier != null) {
+				if (success) {
+					memoryTier.put(key, data);
+				} else {
+					memoryTier.remove(key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -319,34 +386,162 @@ public class ACache {
 	 * @return byte 数据
 	 */
 	public byte[] getAsBinary(String key) {
-		RandomAccessFile RAFile = null;
-		boolean removeFile = false;
+		ByteBuffer value = readValue(key);
+		if (value == null) {
+			return null;
+		}
+		// 内存层里的数组不能交给调用方，这里总是拷贝出一份
+		byte[] data = new byte[value.remaining()];
+		value.get(data);
+		return data;
+	}
+
+	/**
+	 * 获取 byte 数据的只读视图，较大的数据直接映射缓存文件而不会读入堆内存
+	 * 
+	 * @param key
+	 * @return 只读的 ByteBuffer
+	 */
+	public ByteBuffer getAsByteBuffer(String key) {
+		ByteBuffer value = readValue(key);
+		return value == null ? null : value.asReadOnlyBuffer();
+	}
+
+	/**
+	 * 以流的方式读取 byte 数据
+	 * 
+	 * @param key
+	 * @return 数据流，不需要关闭
+	 */
+	public InputStream getAsStream(String key) {
+		ByteBuffer value = readValue(key);
+		return value == null ? null : new ByteBufferInputStream(value);
+	}
+
+	/**
+	 * 判断缓存中是否有未过期的数据，只读取记录头，不读取数据本身
+	 * 
+	 * @param key
+	 * @return true：有未过期的数据
+	 */
+	public boolean contains(String key) {
+		CacheRecord record = null;
+		CacheMemoryTier memoryTier = mMemoryTier;
+		byte[] data = mPending.get(key);
+		if (data == null && memoryTier != null) {
+			data = memoryTier.peek(key);
+		}
+		if (data != null) {
+			record = CacheRecord.parse(data);
+		} else {
+			byte[] header = new byte[CacheRecord.HEADER_SIZE];
+			int read = mCache.readHead(key, header);
+			if (read < 0) {
+				return false;
+			}
+			if (read == header.length) {
+				record = CacheRecord.parse(header);
+			}
+			if (record == null) {
+				// 旧格式的数据，完整读取一次顺便迁移
+				ByteBuffer buffer = readRecord(key);
+				if (buffer == null) {
+					return false;
+				}
+				record = CacheRecord.parse(buffer);
+			}
+		}
+
+		if (record.isExpired(System.currentTimeMillis())) {
+			remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 读取未过期的数据，不包含记录头，压缩过的数据会先解压
+	 * 
+	 * @param key
+	 * @return 数据，可能直接引用内存层中的数组，不能修改
+	 */
+	private ByteBuffer readValue(String key) {
+		ByteBuffer buffer = readRecord(key);
+		if (buffer == null) {
+			return null;
+		}
+		CacheRecord record = CacheRecord.parse(buffer);
+		if (record.isExpired(System.currentTimeMillis())) {
+			remove(key);
+			return null;
+		}
+		buffer.position(buffer.position() + CacheRecord.HEADER_SIZE);
+		ByteBuffer value = buffer.slice();
+		if ((record.flags & CacheRecord.FLAG_DEFLATE) == 0) {
+			return value;
+		}
+
+		long start = System.nanoTime();
+		byte[] inflated = Utils.inflate(value);
+		mDecodeNanos.addAndGet(System.nanoTime() - start);
+		if (inflated == null) {
+			remove(key);
+			return null;
+		}
+		return ByteBuffer.wrap(inflated);
+	}
+
+	/**
+	 * 先查内存层，再读磁盘文件；磁盘上旧格式的数据会被转换成带记录头的格式并写回
+	 * 
+	 * @param key
+	 * @return 带记录头的完整记录，校验失败时返回 null
+	 */
+	private ByteBuffer readRecord(String key) {
+		byte[] pending = mPending.get(key);
+		if (pending != null) {
+			return ByteBuffer.wrap(pending);
+		}
+
+		CacheMemoryTier memoryTier = mMemoryTier;
+		if (memoryTier != null) {
+			byte[] data = memoryTier.get(key);
+			if (data != null) {
+				return ByteBuffer.wrap(data);
+			}
+		}
+
+		// 加锁读取，避免和同一个 key 的写入交错后把旧值放进内存层
+		ReentrantLock lock = lockFor(key);
+		lock.lock();
 		try {
-			File file = mCache.get(key);
-			if (!file.exists())
+			ByteBuffer buffer = mCache.map(key);
+			if (buffer == null) {
+				mDiskMisses.incrementAndGet();
 				return null;
-			RAFile = new RandomAccessFile(file, "r");
-			byte[] byteArray = new byte[(int) RAFile.length()];
-			RAFile.read(byteArray);
-			if (!Utils.isDue(byteArray)) {
-				return Utils.clearDateInfo(byteArray);
-			} else {
-				removeFile = true;
+			}
+
+			CacheRecord record = CacheRecord.parse(buffer);
+			if (record == null) {
+				byte[] legacy = new byte[buffer.remaining()];
+				buffer.get(legacy);
+				byte[] data = CacheRecord.fromLegacy(legacy);
+				mCache.write(key, data, CacheRecord.expireAt(data));
+				buffer = ByteBuffer.wrap(data);
+			} else if (!record.verify(buffer)) {
+				mCache.remove(key);
+				mDiskMisses.incrementAndGet();
 				return null;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		} finally {
-			if (RAFile != null) {
-				try {
-					RAFile.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+
+			mDiskHits.incrementAndGet();
+			// 映射的大数据不放进内存层
+			if (memoryTier != null && buffer.hasArray()) {
+				memoryTier.put(key, buffer.array());
 			}
-			if (removeFile)
-				remove(key);
+			return buffer;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -376,26 +571,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, Serializable value, int saveTime) {
-		ByteArrayOutputStream baos = null;
-		ObjectOutputStream oos = null;
-		try {
-			baos = new ByteArrayOutputStream();
-			oos = new ObjectOutputStream(baos);
-			oos.writeObject(value);
-			byte[] data = baos.toByteArray();
-			if (saveTime != -1) {
-				put(key, data, saveTime);
-			} else {
-				put(key, data);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				oos.close();
-			} catch (IOException e) {
-			}
-		}
+		put(key, (Object) value, CacheCodecs.SERIALIZABLE, saveTime);
 	}
 
 	/**
@@ -405,35 +581,7 @@ public class ACache {
 	 * @return Serializable 数据
 	 */
 	public Object getAsObject(String key) {
-		byte[] data = getAsBinary(key);
-		if (data != null) {
-			ByteArrayInputStream bais = null;
-			ObjectInputStream ois = null;
-			try {
-				bais = new ByteArrayInputStream(data);
-				ois = new ObjectInputStream(bais);
-				Object reObject = ois.readObject();
-				return reObject;
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			} finally {
-				try {
-					if (bais != null)
-						bais.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				try {
-					if (ois != null)
-						ois.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		return null;
-
+		return getAs(key, CacheCodecs.SERIALIZABLE);
 	}
 
 	// =======================================
@@ -448,7 +596,7 @@ public class ACache {
 	 *            保存的bitmap数据
 	 */
 	public void put(String key, Bitmap value) {
-		put(key, Utils.Bitmap2Bytes(value));
+		put(key, value, CacheCodecs.BITMAP);
 	}
 
 	/**
@@ -462,7 +610,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, Bitmap value, int saveTime) {
-		put(key, Utils.Bitmap2Bytes(value), saveTime);
+		put(key, value, CacheCodecs.BITMAP, saveTime);
 	}
 
 	/**
@@ -472,10 +620,7 @@ public class ACache {
 	 * @return bitmap 数据
 	 */
 	public Bitmap getAsBitmap(String key) {
-		if (getAsBinary(key) == null) {
-			return null;
-		}
-		return Utils.Bytes2Bimap(getAsBinary(key));
+		return getAs(key, CacheCodecs.BITMAP);
 	}
 
 	// =======================================
@@ -514,10 +659,74 @@ public class ACache {
 	 * @return Drawable 数据
 	 */
 	public Drawable getAsDrawable(String key) {
-		if (getAsBinary(key) == null) {
+		return Utils.bitmap2Drawable(getAsBitmap(key));
+	}
+
+	// =======================================
+	// ============= 自定义编码 数据 读写 =============
+	// =======================================
+	/**
+	 * 用指定的编码保存数据到 缓存中
+	 * 
+	 * @param key
+	 *            保存的key
+	 * @param value
+	 *            保存的数据
+	 * @param codec
+	 *            数据的编码，读取时要用同一个
+	 */
+	public <T> void put(String key, T value, CacheCodec<T> codec) {
+		put(key, value, codec, CacheRecord.NO_EXPIRY);
+	}
+
+	/**
+	 * 用指定的编码保存数据到 缓存中
+	 * 
+	 * @param key
+	 *            保存的key
+	 * @param value
+	 *            保存的数据
+	 * @param codec
+	 *            数据的编码，读取时要用同一个
+	 * @param saveTime
+	 *            保存的时间，单位：秒
+	 */
+	public <T> void put(String key, T value, CacheCodec<T> codec, int saveTime) {
+		byte[] data;
+		long start = System.nanoTime();
+		try {
+			data = codec.encode(value);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			mEncodeNanos.addAndGet(System.nanoTime() - start);
+		}
+		put(key, data, saveTime);
+	}
+
+	/**
+	 * 用指定的编码读取数据
+	 * 
+	 * @param key
+	 * @param codec
+	 *            保存时用的编码
+	 * @return 数据，没有或者解码失败时返回 null
+	 */
+	public <T> T getAs(String key, CacheCodec<T> codec) {
+		ByteBuffer value = readValue(key);
+		if (value == null) {
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			return codec.decode(value);
+		} catch (Exception e) {
+			e.printStackTrace();
 			return null;
+		} finally {
+			mDecodeNanos.addAndGet(System.nanoTime() - start);
 		}
-		return Utils.bitmap2Drawable(Utils.Bytes2Bimap(getAsBinary(key)));
 	}
 
 	/**
@@ -527,8 +736,8 @@ public class ACache {
 	 * @return value 缓存的文件
 	 */
 	public File file(String key) {
-		File f = mCache.newFile(key);
-		if (f.exists())
+		File f = mCache.file(key);
+		if (f != null && f.exists())
 			return f;
 		return null;
 	}
@@ -540,14 +749,275 @@ public class ACache {
 	 * @return 是否移除成功
 	 */
 	public boolean remove(String key) {
-		return mCache.remove(key);
+		// 和后台写盘互斥，避免删除后又被写回
+		ReentrantLock lock = lockFor(key);
+		lock.lock();
+		try {
+			boolean pending = mPending.remove(key) != null;
+			CacheMemoryTier memoryTier = mMemoryTier;
+			if (memoryTier != null) {
+				memoryTier.remove(key);
+			}
+			return mCache.remove(key) || pending;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * 清除所有数据
 	 */
 	public void clear() {
-		mCache.clear();
+		// 按顺序获取全部的锁，不会和单个 key 的操作死锁
+		for (ReentrantLock lock : mKeyLocks) {
+			lock.lock();
+		}
+		try {
+			mPending.clear();
+			CacheMemoryTier memoryTier = mMemoryTier;
+			if (memoryTier != null) {
+				memoryTier.clear();
+			}
+			mCache.clear();
+		} finally {
+			for (int i = mKeyLocks.length - 1; i >= 0; i--) {
+				mKeyLocks[i].unlock();
+			}
+		}
+	}
+
+	private ReentrantLock lockFor(String key) {
+		int h = key.hashCode();
+		// 打散 hashCode 的高位，和 ACacheManager 文件名的分布无关
+		h ^= (h >>> 16);
+		return mKeyLocks[h & (KEY_LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * 开启延迟写：put 只写到内存，由后台线程合并同一个 key 的多次写入后批量写盘，读取时能读到还没写盘的数据
+	 * 
+	 * @return this
+	 */
+	public ACache enableWriteBehind() {
+		mWriteBehind = true;
+		return this;
+	}
+
+	/**
+	 * 等待所有延迟写的数据写到磁盘，退出前调用，不能在写盘线程中调用
+	 */
+	public void flush() {
+		if (mPending.isEmpty()) {
+			return;
+		}
+		try {
+			WRITER.submit(new Runnable() {
+				@Override
+				public void run() {
+					drainPending();
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 关闭实例：写完延迟写的数据，等后台的扫描、快照和压缩完成后释放文件，之后的 get 会重新打开目录。
+	 * 关闭后不能再使用这个实例，不能在写盘线程中调用
+	 */
+	public void close() {
+		mInstanceMap.remove(mInstanceKey, this);
+		synchronized (this) {
+			if (mSweeper != null) {
+				mSweeper.cancel(false);
+				mSweeper = null;
+			}
+		}
+		flush();
+		mCache.close();
+	}
+
+	private void scheduleDrain() {
+		if (!mDrainScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		WRITER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				mDrainScheduled.set(false);
+				drainPending();
+			}
+		}, WRITE_BEHIND_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void drainPending() {
+		for (String key : mPending.keySet()) {
+			ReentrantLock lock = lockFor(key);
+			lock.lock();
+			try {
+				byte[] data = mPending.remove(key);
+				if (data == null) {
+					continue;
+				}
+				boolean success = mCache.write(key, data, CacheRecord.expireAt(data));
+				CacheMemoryTier memoryTier = mMemoryTier;
+				if (!success && memoryTier != null) {
+					memoryTier.remove(key);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 按过期时间的顺序删除已经过期的数据，最多用 budgetMs 毫秒，没删完的留给下一次
+	 * 
+	 * @param budgetMs
+	 *            本次最多用的时间，单位：毫秒
+	 * @return 删除的条数和字节数
+	 */
+	public SweepResult sweep(long budgetMs) {
+		SweepResult result = new SweepResult();
+		mCache.sweep(System.currentTimeMillis(),
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs), result);
+		if (result.entries > 0) {
+			mSweptEntries.addAndGet(result.entries);
+			mSweptBytes.addAndGet(result.bytes);
+			Log.i(TAG, "swept " + result.entries + " expired entries, " + result.bytes + " bytes");
+		}
+		return result;
+	}
+
+	/**
+	 * 定期在后台清理过期数据，每次最多用 {@link #SWEEP_BUDGET_MS} 毫秒，
+	 * 不开启时过期数据只在读到的时候删除
+	 * 
+	 * @param periodMs
+	 *            两次清理之间的间隔，单位：毫秒
+	 * @return this
+	 */
+	public ACache enableSweeper(long periodMs) {
+		synchronized (this) {
+			if (mSweeper == null) {
+				mSweeper = WRITER.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						sweep(SWEEP_BUDGET_MS);
+					}
+				}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * 开启压缩，不小于 minBytes 的数据用 Deflater 压缩后保存，较大的数据用最快的压缩级别，
+	 * 压缩后省不了多少空间的数据仍然原样保存；读取时自动解压
+	 * 
+	 * @param minBytes
+	 *            需要压缩的最小字节数
+	 * @return this
+	 */
+	public ACache enableCompression(int minBytes) {
+		mCompressThreshold = Math.max(minBytes, 1);
+		return this;
+	}
+
+	/**
+	 * 在磁盘缓存之上开启一个按字节数限制大小的内存缓存，写入时同时写到磁盘
+	 * 
+	 * @param maxBytes
+	 *            内存缓存的最大字节数
+	 * @return this
+	 */
+	public ACache enableMemoryTier(long maxBytes) {
+		synchronized (this) {
+			if (mMemoryTier == null) {
+				mMemoryTier = new CacheMemoryTier(maxBytes);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * 获取各层缓存的命中统计
+	 */
+	public Stats getStats() {
+		Stats stats = new Stats();
+		CacheMemoryTier memoryTier = mMemoryTier;
+		if (memoryTier != null) {
+			stats.memoryHits = memoryTier.hitCount();
+			stats.memoryMisses = memoryTier.missCount();
+			stats.memoryEvictions = memoryTier.evictionCount();
+			stats.memorySize = memoryTier.size();
+		}
+		stats.diskHits = mDiskHits.get();
+		stats.diskMisses = mDiskMisses.get();
+		stats.diskSize = mCache.size();
+		stats.diskCount = mCache.count();
+		stats.pendingWrites = mPending.size();
+		stats.sweptEntries = mSweptEntries.get();
+		stats.sweptBytes = mSweptBytes.get();
+		stats.rawBytes = mRawBytes.get();
+		stats.storedBytes = mStoredBytes.get();
+		stats.encodeNanos = mEncodeNanos.get();
+		stats.decodeNanos = mDecodeNanos.get();
+		return stats;
+	}
+
+	/**
+	 * @title 缓存命中统计
+	 */
+	public static class Stats {
+		public long memoryHits;
+		public long memoryMisses;
+		public long memoryEvictions;
+		public long memorySize;
+		public long diskHits;
+		public long diskMisses;
+		public long diskSize;
+		public int diskCount;
+		public int pendingWrites;
+		public long sweptEntries;
+		public long sweptBytes;
+		// 写入的数据压缩前后的总字节数
+		public long rawBytes;
+		public long storedBytes;
+		// 编码、压缩和解压、解码花的总时间
+		public long encodeNanos;
+		public long decodeNanos;
+
+		/**
+		 * @return 压缩后和压缩前的字节数之比，没有写入过数据时为 1
+		 */
+		public double compressionRatio() {
+			return rawBytes == 0 ? 1 : (double) storedBytes / rawBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats{" +
+					"memoryHits=" + memoryHits +
+					", memoryMisses=" + memoryMisses +
+					", memoryEvictions=" + memoryEvictions +
+					", memorySize=" + memorySize +
+					", diskHits=" + diskHits +
+					", diskMisses=" + diskMisses +
+					", diskSize=" + diskSize +
+					", diskCount=" + diskCount +
+					", pendingWrites=" + pendingWrites +
+					", sweptEntries=" + sweptEntries +
+					", sweptBytes=" + sweptBytes +
+					", rawBytes=" + rawBytes +
+					", storedBytes=" + storedBytes +
+					", encodeNanos=" + encodeNanos +
+					", decodeNanos=" + decodeNanos +
+					'}';
+		}
 	}
 
 	/**
@@ -555,13 +1025,30 @@ public class ACache {
 	 * @author 杨福海（michael） www.yangfuhai.com
 	 * @version 1.0
 	 */
-	public class ACacheManager {
+	public class ACacheManager implements CacheStore {
 		private final AtomicLong cacheSize;
 		private final AtomicInteger cacheCount;
 		private final long sizeLimit;
 		private final int countLimit;
-		private final Map<File, Long> lastUsageDates = Collections
-				.synchronizedMap(new HashMap<File, Long>());
+		/**
+		 * 按访问顺序排列的索引，最久未使用的文件在最前面；
+		 * 索引、过期队列和 cacheSize/cacheCount 的修改都在它的锁内完成
+		 */
+		private final LinkedHashMap<File, IndexEntry> lruIndex = new LinkedHashMap<File, IndexEntry>(
+				16, 0.75f, true);
+		// 按过期时间排序的有过期时间的项，被替换或删除的项在出队时跳过
+		private final PriorityQueue<IndexEntry> expiryQueue = new PriorityQueue<IndexEntry>(16,
+				new Comparator<IndexEntry>() {
+					@Override
+					public int compare(IndexEntry o1, IndexEntry o2) {
+						return Long.compare(o1.expireAt, o2.expireAt);
+					}
+				});
+		// 还没读过记录头、不知道过期时间的项
+		private final ArrayDeque<IndexEntry> unknownExpiry = new ArrayDeque<IndexEntry>();
+		private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+		// 关闭后不再写快照，只在写线程访问
+		private boolean closed;
 		protected File cacheDir;
 
 		private ACacheManager(File cacheDir, long sizeLimit, int countLimit) {
@@ -570,257 +1057,708 @@ public class ACache {
 			this.countLimit = countLimit;
 			cacheSize = new AtomicLong();
 			cacheCount = new AtomicInteger();
-			calculateCacheSizeAndCacheCount();
+
+			long start = System.nanoTime();
+			boolean loaded = loadSnapshot();
+			Log.i(TAG, "open " + cacheDir + ": " + cacheCount.get() + " entries in "
+					+ (System.nanoTime() - start) / 1000000 + " ms, from snapshot: " + loaded);
+			if (loaded) {
+				reconcileWithDirectory();
+			} else {
+				calculateCacheSizeAndCacheCount();
+			}
 		}
 
 		/**
-		 * 计算 cacheSize和cacheCount
+		 * 计算 cacheSize和cacheCount，只在没有可用的索引快照时扫描整个目录
 		 */
 		private void calculateCacheSizeAndCacheCount() {
-			new Thread(new Runnable() {
+			WRITER.execute(new Runnable() {
 				@Override
 				public void run() {
-					int size = 0;
-					int count = 0;
-					File[] cachedFiles = cacheDir.listFiles();
-					if (cachedFiles != null) {
-						for (File cachedFile : cachedFiles) {
-							size += calculateSize(cachedFile);
-							count += 1;
-							lastUsageDates.put(cachedFile,
-									cachedFile.lastModified());
+					File[] cachedFiles = cacheDir.listFiles(CACHE_FILE_FILTER);
+					if (cachedFiles == null) {
+						return;
+					}
+					final long[] lastModified = new long[cachedFiles.length];
+					Integer[] order = new Integer[cachedFiles.length];
+					for (int i = 0; i < cachedFiles.length; i++) {
+						lastModified[i] = cachedFiles[i].lastModified();
+						order[i] = i;
+					}
+					// 按最后使用时间从旧到新排列
+					Arrays.sort(order, new Comparator<Integer>() {
+						@Override
+						public int compare(Integer o1, Integer o2) {
+							return Long.compare(lastModified[o1], lastModified[o2]);
+						}
+					});
+
+					LinkedHashMap<File, IndexEntry> scanned = new LinkedHashMap<File, IndexEntry>(
+							cachedFiles.length * 2);
+					for (Integer i : order) {
+						scanned.put(cachedFiles[i], new IndexEntry(cachedFiles[i],
+								calculateSize(cachedFiles[i]), EXPIRE_UNKNOWN));
+					}
+
+					synchronized (lruIndex) {
+						// 扫描期间被访问过的文件比扫描到的都要新，排在后面
+						for (Entry<File, IndexEntry> entry : lruIndex.entrySet()) {
+							scanned.remove(entry.getKey());
+							scanned.put(entry.getKey(), entry.getValue());
+						}
+						lruIndex.clear();
+						expiryQueue.clear();
+						unknownExpiry.clear();
+						cacheSize.set(0);
+						cacheCount.set(0);
+						for (IndexEntry entry : scanned.values()) {
+							index(entry);
 						}
-						cacheSize.set(size);
-						cacheCount.set(count);
 					}
+					scheduleSnapshot();
 				}
-			}).start();
+			});
 		}
 
-		private void put(File file) {
-			int curCacheCount = cacheCount.get();
-			while (curCacheCount + 1 > countLimit) {
-				long freedSize = removeNext();
-				cacheSize.addAndGet(-freedSize);
-
-				curCacheCount = cacheCount.addAndGet(-1);
+		/**
+		 * 映射索引快照文件，按 LRU 顺序恢复索引
+		 * 
+		 * @return 快照是否可用
+		 */
+		private boolean loadSnapshot() {
+			File snapshot = new File(cacheDir, SNAPSHOT_FILE);
+			if (!snapshot.exists()) {
+				return false;
 			}
-			cacheCount.addAndGet(1);
+			RandomAccessFile RAFile = null;
+			try {
+				RAFile = new RandomAccessFile(snapshot, "r");
+				ByteBuffer buffer = RAFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, RAFile.length());
+				if (buffer.remaining() < SNAPSHOT_HEADER_SIZE + 4 || buffer.getInt(0) != SNAPSHOT_MAGIC
+						|| buffer.getInt(4) != SNAPSHOT_VERSION) {
+					return false;
+				}
+				int count = buffer.getInt(8);
+				if (count < 0 || buffer.remaining() != SNAPSHOT_HEADER_SIZE + (long) count * SNAPSHOT_ENTRY_SIZE + 4) {
+					return false;
+				}
+				ByteBuffer entries = buffer.duplicate();
+				entries.position(SNAPSHOT_HEADER_SIZE);
+				entries.limit(buffer.limit() - 4);
+				CRC32 crc = new CRC32();
+				crc.update(entries);
+				if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+					return false;
+				}
 
-			long valueSize = calculateSize(file);
-			long curCacheSize = cacheSize.get();
-			while (curCacheSize + valueSize > sizeLimit) {
-				long freedSize = removeNext();
-				curCacheSize = cacheSize.addAndGet(-freedSize);
+				synchronized (lruIndex) {
+					int position = SNAPSHOT_HEADER_SIZE;
+					for (int i = 0; i < count; i++) {
+						File file = new File(cacheDir, String.valueOf(buffer.getInt(position)));
+						index(new IndexEntry(file, buffer.getLong(position + 4), buffer.getLong(position + 12)));
+						position += SNAPSHOT_ENTRY_SIZE;
+					}
+				}
+				return true;
+			} catch (Exception e) {
+				e.printStackTrace();
+				return false;
+			} finally {
+				IOUtils.closeSilently(RAFile);
 			}
-			cacheSize.addAndGet(valueSize);
-
-			Long currentTime = System.currentTimeMillis();
-			file.setLastModified(currentTime);
-			lastUsageDates.put(file, currentTime);
 		}
 
-		private File get(String key) {
-			File file = newFile(key);
-			Long currentTime = System.currentTimeMillis();
-			file.setLastModified(currentTime);
-			lastUsageDates.put(file, currentTime);
+		/**
+		 * 快照之后的改动可能没来得及保存：只列目录不读取文件属性，补上新文件，去掉已经不存在的文件
+		 */
+		private void reconcileWithDirectory() {
+			WRITER.execute(new Runnable() {
+				@Override
+				public void run() {
+					String[] names = cacheDir.list(CACHE_FILE_FILTER);
+					if (names == null) {
+						return;
+					}
+					HashSet<String> onDisk = new HashSet<String>(Arrays.asList(names));
+					List<File> added = new ArrayList<File>();
+					boolean changed = false;
+					synchronized (lruIndex) {
+						Iterator<IndexEntry> iterator = lruIndex.values().iterator();
+						while (iterator.hasNext()) {
+							IndexEntry entry = iterator.next();
+							if (!onDisk.remove(entry.file.getName())) {
+								iterator.remove();
+								unindex(entry);
+								changed = true;
+							}
+						}
+					}
+					for (String name : onDisk) {
+						added.add(new File(cacheDir, name));
+					}
 
-			return file;
+					if (!added.isEmpty()) {
+						// 快照之后写入的文件，比索引里的都要新
+						final long[] lastModified = new long[added.size()];
+						final long[] sizes = new long[added.size()];
+						Integer[] order = new Integer[added.size()];
+						for (int i = 0; i < order.length; i++) {
+							lastModified[i] = added.get(i).lastModified();
+							sizes[i] = calculateSize(added.get(i));
+							order[i] = i;
+						}
+						Arrays.sort(order, new Comparator<Integer>() {
+							@Override
+							public int compare(Integer o1, Integer o2) {
+								return Long.compare(lastModified[o1], lastModified[o2]);
+							}
+						});
+						synchronized (lruIndex) {
+							for (Integer i : order) {
+								if (!lruIndex.containsKey(added.get(i))) {
+									index(new IndexEntry(added.get(i), sizes[i], EXPIRE_UNKNOWN));
+								}
+							}
+						}
+						changed = true;
+					}
+					if (changed) {
+						scheduleSnapshot();
+					}
+				}
+			});
 		}
 
-		private File newFile(String key) {
-			return new File(cacheDir, key.hashCode() + "");
+		/**
+		 * 索引有变化时调用，攒一批改动后在后台保存一次快照
+		 */
+		private void scheduleSnapshot() {
+			if (!snapshotScheduled.compareAndSet(false, true)) {
+				return;
+			}
+			WRITER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					snapshotScheduled.set(false);
+					if (!closed) {
+						writeSnapshot();
+					}
+				}
+			}, SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS);
 		}
 
-		private boolean remove(String key) {
-			File image = get(key);
-			return image.delete();
+		/**
+		 * 在写线程中等排在前面的扫描完成，把还没保存的快照立即保存
+		 */
+		@Override
+		public void close() {
+			try {
+				WRITER.submit(new Runnable() {
+					@Override
+					public void run() {
+						if (snapshotScheduled.getAndSet(false)) {
+							writeSnapshot();
+						}
+						closed = true;
+					}
+				}).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
 		}
 
-		private void clear() {
-			lastUsageDates.clear();
-			cacheSize.set(0);
-			File[] files = cacheDir.listFiles();
-			if (files != null) {
-				for (File f : files) {
-					f.delete();
+		private void writeSnapshot() {
+			if (!cacheDir.isDirectory()) {
+				// 目录被外部清掉了，下次打开时重新扫描
+				return;
+			}
+			ByteBuffer buffer;
+			synchronized (lruIndex) {
+				buffer = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + lruIndex.size() * SNAPSHOT_ENTRY_SIZE + 4);
+				buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(0);
+				int count = 0;
+				for (IndexEntry entry : lruIndex.values()) {
+					int name;
+					try {
+						name = Integer.parseInt(entry.file.getName());
+					} catch (NumberFormatException e) {
+						// 不是 ACache 写的文件
+						continue;
+					}
+					buffer.putInt(name).putLong(entry.size).putLong(entry.expireAt);
+					count++;
+				}
+				buffer.putInt(8, count);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), SNAPSHOT_HEADER_SIZE, buffer.position() - SNAPSHOT_HEADER_SIZE);
+			buffer.putInt((int) crc.getValue());
+			buffer.flip();
+
+			File snapshot = new File(cacheDir, SNAPSHOT_FILE);
+			File tmp = new File(cacheDir, SNAPSHOT_FILE + ".tmp");
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(tmp);
+				out.getChannel().write(buffer);
+				out.close();
+				out = null;
+				if (!tmp.renameTo(snapshot)) {
+					tmp.delete();
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				tmp.delete();
+			} finally {
+				IOUtils.closeSilently(out);
 			}
 		}
 
 		/**
-		 * 移除旧的文件
+		 * 把写好的临时文件换成正式文件并加入索引，在 lruIndex 的锁内完成，
+		 * 淘汰和清理过期数据不会删掉刚换上去的文件
 		 * 
-		 * @return
+		 * @return 是否成功
 		 */
-		private long removeNext() {
-			if (lastUsageDates.isEmpty()) {
-				return 0;
+		private boolean put(File tmp, File file, long valueSize, long expireAt) {
+			synchronized (lruIndex) {
+				if (!tmp.renameTo(file)) {
+					return false;
+				}
+				IndexEntry old = lruIndex.remove(file);
+				if (old != null) {
+					unindex(old);
+				}
+				while (!lruIndex.isEmpty()
+						&& (cacheCount.get() + 1 > countLimit || cacheSize.get() + valueSize > sizeLimit)) {
+					removeNext().file.delete();
+				}
+				index(new IndexEntry(file, valueSize, expireAt));
+				if (expiryQueue.size() > lruIndex.size() * 2 + EXPIRY_QUEUE_SLACK) {
+					rebuildExpiryQueue();
+				}
 			}
+			scheduleSnapshot();
+			return true;
+		}
 
-			Long oldestUsage = null;
-			File mostLongUsedFile = null;
-			Set<Entry<File, Long>> entries = lastUsageDates.entrySet();
-			synchronized (lastUsageDates) {
-				for (Entry<File, Long> entry : entries) {
-					if (mostLongUsedFile == null) {
-						mostLongUsedFile = entry.getKey();
-						oldestUsage = entry.getValue();
-					} else {
-						Long lastValueUsage = entry.getValue();
-						if (lastValueUsage < oldestUsage) {
-							oldestUsage = lastValueUsage;
-							mostLongUsedFile = entry.getKey();
-						}
+		/**
+		 * 加入索引，调用方需持有 lruIndex 的锁
+		 */
+		private void index(IndexEntry entry) {
+			lruIndex.put(entry.file, entry);
+			cacheSize.addAndGet(entry.size);
+			cacheCount.addAndGet(1);
+			if (entry.expireAt == EXPIRE_UNKNOWN) {
+				unknownExpiry.add(entry);
+			} else if (entry.expireAt != CacheRecord.NEVER) {
+				expiryQueue.add(entry);
+			}
+		}
+
+		/**
+		 * 已经从 lruIndex 中移除的项，更新统计并让过期队列跳过它，调用方需持有 lruIndex 的锁
+		 */
+		private void unindex(IndexEntry entry) {
+			entry.removed = true;
+			cacheSize.addAndGet(-entry.size);
+			cacheCount.addAndGet(-1);
+		}
+
+		private void rebuildExpiryQueue() {
+			expiryQueue.clear();
+			for (IndexEntry entry : lruIndex.values()) {
+				if (entry.expireAt != EXPIRE_UNKNOWN && entry.expireAt != CacheRecord.NEVER) {
+					expiryQueue.add(entry);
+				}
+			}
+		}
+
+		@Override
+		public void sweep(long now, long deadline, SweepResult result) {
+			// 先补上不知道过期时间的项，读记录头不持有锁
+			byte[] header = new byte[CacheRecord.HEADER_SIZE];
+			while (System.nanoTime() < deadline) {
+				IndexEntry entry;
+				synchronized (lruIndex) {
+					entry = unknownExpiry.poll();
+				}
+				if (entry == null) {
+					break;
+				}
+				long expireAt = CacheRecord.NEVER;
+				int read = readHead(entry.file, header);
+				if (read == header.length) {
+					expireAt = CacheRecord.expireAt(header);
+				}
+				synchronized (lruIndex) {
+					// 读的时候被替换或者删掉了
+					if (entry.removed) {
+						continue;
+					}
+					entry.expireAt = expireAt;
+					if (expireAt != CacheRecord.NEVER) {
+						expiryQueue.add(entry);
 					}
 				}
 			}
 
-			long fileSize = calculateSize(mostLongUsedFile);
-			if (mostLongUsedFile.delete()) {
-				lastUsageDates.remove(mostLongUsedFile);
+			boolean changed = false;
+			synchronized (lruIndex) {
+				while (System.nanoTime() < deadline) {
+					IndexEntry entry = expiryQueue.peek();
+					if (entry == null || entry.expireAt >= now) {
+						result.complete = unknownExpiry.isEmpty();
+						break;
+					}
+					expiryQueue.poll();
+					if (entry.removed) {
+						continue;
+					}
+					lruIndex.remove(entry.file);
+					unindex(entry);
+					entry.file.delete();
+					result.entries++;
+					result.bytes += entry.size;
+					changed = true;
+				}
+			}
+			if (changed) {
+				scheduleSnapshot();
 			}
-			return fileSize;
 		}
 
-		private long calculateSize(File file) {
-			return file.length();
+		@Override
+		public byte[] read(String key) {
+			RandomAccessFile RAFile = null;
+			try {
+				File file = get(key);
+				if (!file.exists())
+					return null;
+				RAFile = new RandomAccessFile(file, "r");
+				byte[] byteArray = new byte[(int) RAFile.length()];
+				RAFile.readFully(byteArray);
+				return byteArray;
+			} catch (Exception e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				if (RAFile != null) {
+					try {
+						RAFile.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
 		}
-	}
 
-	/**
-	 * @title 时间计算工具类
-	 * @author 杨福海（michael） www.yangfuhai.com
-	 * @version 1.0
-	 */
-	private static class Utils {
+		@Override
+		public ByteBuffer map(String key) {
+			if (newFile(key).length() < MAP_THRESHOLD) {
+				byte[] data = read(key);
+				return data == null ? null : ByteBuffer.wrap(data);
+			}
+			RandomAccessFile RAFile = null;
+			try {
+				File file = get(key);
+				RAFile = new RandomAccessFile(file, "r");
+				// 映射在文件关闭甚至被删除后依然有效
+				return RAFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, RAFile.length());
+			} catch (Exception e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				IOUtils.closeSilently(RAFile);
+			}
+		}
 
-		/**
-		 * 判断缓存的String数据是否到期
-		 * 
-		 * @param str
-		 * @return true：到期了 false：还没有到期
-		 */
-		private static boolean isDue(String str) {
-			return isDue(str.getBytes());
+		@Override
+		public int readHead(String key, byte[] buffer) {
+			return readHead(newFile(key), buffer);
 		}
 
-		/**
-		 * 判断缓存的byte数据是否到期
-		 * 
-		 * @param data
-		 * @return true：到期了 false：还没有到期
-		 */
-		private static boolean isDue(byte[] data) {
-			String[] strs = getDateInfoFromDate(data);
-			if (strs != null && strs.length == 2) {
-				String saveTimeStr = strs[0];
-				while (saveTimeStr.startsWith("0")) {
-					saveTimeStr = saveTimeStr
-							.substring(1, saveTimeStr.length());
-				}
-				long saveTime = Long.valueOf(saveTimeStr);
-				long deleteAfter = Long.valueOf(strs[1]);
-				if (System.currentTimeMillis() > saveTime + deleteAfter * 1000) {
-					return true;
+		private int readHead(File file, byte[] buffer) {
+			RandomAccessFile RAFile = null;
+			try {
+				if (!file.exists())
+					return -1;
+				RAFile = new RandomAccessFile(file, "r");
+				int length = (int) Math.min(buffer.length, RAFile.length());
+				RAFile.readFully(buffer, 0, length);
+				return length;
+			} catch (Exception e) {
+				e.printStackTrace();
+				return -1;
+			} finally {
+				IOUtils.closeSilently(RAFile);
+			}
+		}
+
+		@Override
+		public boolean write(String key, byte[] value, long expireAt) {
+			File file = newFile(key);
+			// 先写临时文件再改名，读取的一方不会看到写了一半的文件
+			File tmp = new File(cacheDir, TMP_PREFIX + file.getName());
+			FileOutputStream out = null;
+			boolean success = false;
+			try {
+				out = new FileOutputStream(tmp);
+				out.write(value);
+				out.close();
+				out = null;
+				success = put(tmp, file, value.length, expireAt);
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				IOUtils.closeSilently(out);
+				if (!success) {
+					tmp.delete();
 				}
 			}
-			return false;
+			return success;
 		}
 
-		private static String newStringWithDateInfo(int second, String strInfo) {
-			return createDateInfo(second) + strInfo;
+		@Override
+		public File file(String key) {
+			return newFile(key);
 		}
 
-		private static byte[] newByteArrayWithDateInfo(int second, byte[] data2) {
-			byte[] data1 = createDateInfo(second).getBytes();
-			byte[] retdata = new byte[data1.length + data2.length];
-			System.arraycopy(data1, 0, retdata, 0, data1.length);
-			System.arraycopy(data2, 0, retdata, data1.length, data2.length);
-			return retdata;
+		@Override
+		public long size() {
+			return cacheSize.get();
 		}
 
-		private static String clearDateInfo(String strInfo) {
-			if (strInfo != null && hasDateInfo(strInfo.getBytes())) {
-				strInfo = strInfo.substring(strInfo.indexOf(mSeparator) + 1,
-						strInfo.length());
-			}
-			return strInfo;
+		@Override
+		public int count() {
+			return cacheCount.get();
 		}
 
-		private static byte[] clearDateInfo(byte[] data) {
-			if (hasDateInfo(data)) {
-				return copyOfRange(data, indexOf(data, mSeparator) + 1,
-						data.length);
+		private File get(String key) {
+			File file = newFile(key);
+			synchronized (lruIndex) {
+				// 访问即移动到队尾，访问顺序保存在索引快照里，不再修改文件时间
+				if (lruIndex.get(file) == null) {
+					return file;
+				}
 			}
-			return data;
+			scheduleSnapshot();
+			return file;
 		}
 
-		private static boolean hasDateInfo(byte[] data) {
-			return data != null && data.length > 15 && data[13] == '-'
-					&& indexOf(data, mSeparator) > 14;
+		private File newFile(String key) {
+			return new File(cacheDir, key.hashCode() + "");
 		}
 
-		private static String[] getDateInfoFromDate(byte[] data) {
-			if (hasDateInfo(data)) {
-				String saveDate = new String(copyOfRange(data, 0, 13));
-				String deleteAfter = new String(copyOfRange(data, 14,
-						indexOf(data, mSeparator)));
-				return new String[] { saveDate, deleteAfter };
+		@Override
+		public boolean remove(String key) {
+			File file = newFile(key);
+			boolean deleted;
+			synchronized (lruIndex) {
+				IndexEntry entry = lruIndex.remove(file);
+				if (entry != null) {
+					unindex(entry);
+				}
+				deleted = file.delete();
 			}
-			return null;
+			scheduleSnapshot();
+			return deleted;
 		}
 
-		private static int indexOf(byte[] data, char c) {
-			for (int i = 0; i < data.length; i++) {
-				if (data[i] == c) {
-					return i;
+		@Override
+		public void clear() {
+			synchronized (lruIndex) {
+				lruIndex.clear();
+				expiryQueue.clear();
+				unknownExpiry.clear();
+				cacheSize.set(0);
+				cacheCount.set(0);
+			}
+			File[] files = cacheDir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
 				}
 			}
-			return -1;
+			scheduleSnapshot();
+		}
+
+		/**
+		 * 从索引中移除最久未使用的文件，调用方需持有 lruIndex 的锁并在锁内删除文件，
+		 * 否则可能删掉其他线程刚写好的同名文件
+		 * 
+		 * @return 被移除的项
+		 */
+		private IndexEntry removeNext() {
+			Iterator<IndexEntry> iterator = lruIndex.values().iterator();
+			IndexEntry eldest = iterator.next();
+			iterator.remove();
+			unindex(eldest);
+			return eldest;
 		}
 
-		private static byte[] copyOfRange(byte[] original, int from, int to) {
-			int newLength = to - from;
-			if (newLength < 0)
-				throw new IllegalArgumentException(from + " > " + to);
-			byte[] copy = new byte[newLength];
-			System.arraycopy(original, from, copy, 0,
-					Math.min(original.length - from, newLength));
-			return copy;
+		private long calculateSize(File file) {
+			return file.length();
 		}
+	}
 
-		private static final char mSeparator = ' ';
+	/**
+	 * @title 一次清理过期数据的结果
+	 */
+	public static class SweepResult {
+		public int entries;
+		public long bytes;
+		// 是否已经没有过期数据了，为 false 时是预算用完了
+		public boolean complete;
+
+		@Override
+		public String toString() {
+			return "SweepResult{" +
+					"entries=" + entries +
+					", bytes=" + bytes +
+					", complete=" + complete +
+					'}';
+		}
+	}
+
+	/**
+	 * @title ACacheManager 索引中的一个文件
+	 */
+	private static class IndexEntry {
+		final File file;
+		final long size;
+		long expireAt;
+		boolean removed;
+
+		IndexEntry(File file, long size, long expireAt) {
+			this.file = file;
+			this.size = size;
+			this.expireAt = expireAt;
+		}
+	}
+
+	/**
+	 * @title 读取 ByteBuffer 的输入流
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
 
-		private static String createDateInfo(int second) {
-			String currentTime = System.currentTimeMillis() + "";
-			while (currentTime.length() < 13) {
-				currentTime = "0" + currentTime;
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
 			}
-			return currentTime + "-" + second + mSeparator;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
 		}
 
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * @title 数据转换工具类
+	 * @author 杨福海（michael） www.yangfuhai.com
+	 * @version 1.0
+	 */
+	private static class Utils {
+
 		/*
-		 * Bitmap → byte[]
+		 * byte[] → 压缩后的 byte[]，前 4 个字节是原始长度；省不到 1/8 时返回 null
 		 */
-		private static byte[] Bitmap2Bytes(Bitmap bm) {
-			if (bm == null) {
-				return null;
+		private static byte[] deflate(byte[] value) {
+			Deflater deflater = new Deflater(value.length >= COMPRESS_FAST_SIZE ? Deflater.BEST_SPEED
+					: Deflater.DEFAULT_COMPRESSION);
+			try {
+				int limit = value.length - value.length / 8;
+				if (limit <= 4) {
+					// 太小的数据连长度头都放不下
+					return null;
+				}
+				byte[] out = new byte[limit];
+				ByteBuffer.wrap(out).putInt(value.length);
+				deflater.setInput(value);
+				deflater.finish();
+				int length = 4;
+				while (!deflater.finished() && length < limit) {
+					length += deflater.deflate(out, length, limit - length);
+				}
+				if (!deflater.finished()) {
+					return null;
+				}
+				return Arrays.copyOf(out, length);
+			} finally {
+				deflater.end();
 			}
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
-			return baos.toByteArray();
 		}
 
 		/*
-		 * byte[] → Bitmap
+		 * deflate 的结果 → byte[]，数据损坏时返回 null
 		 */
-		private static Bitmap Bytes2Bimap(byte[] b) {
-			if (b.length == 0) {
+		private static byte[] inflate(ByteBuffer b) {
+			if (b.remaining() < 4) {
 				return null;
 			}
-			return BitmapFactory.decodeByteArray(b, 0, b.length);
+			int length = b.getInt(b.position());
+			if (length < 0) {
+				return null;
+			}
+			byte[] input;
+			int offset;
+			if (b.hasArray()) {
+				input = b.array();
+				offset = b.arrayOffset() + b.position() + 4;
+			} else {
+				input = new byte[b.remaining() - 4];
+				ByteBuffer copy = b.duplicate();
+				copy.position(copy.position() + 4);
+				copy.get(input);
+				offset = 0;
+			}
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(input, offset, b.remaining() - 4);
+				byte[] out = new byte[length];
+				int read = 0;
+				while (read < length) {
+					int n = inflater.inflate(out, read, length - read);
+					if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+						return null;
+					}
+					read += n;
+				}
+				return out;
+			} catch (DataFormatException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				inflater.end();
+			}
 		}
 
 		/*
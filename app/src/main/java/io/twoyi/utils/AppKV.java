@@ -31,6 +31,10 @@ public class AppKV {
 
     // 是否应该使用第三方 ROM
     public static final String SHOULD_USE_THIRD_PARTY_ROM = "should_use_third_party_rom";
+
+    // 导入第三方 ROM 时的 SHA-256，安装前校验文件没有变
+    public static final String THIRD_PARTY_ROM_SHA256 = "third_party_rom_sha256";
+
     public static boolean getBooleanConfig(Context context,  String key, boolean fallback) {
         return getPref(context).getBoolean(key, fallback);
     }
@@ -40,6 +44,15 @@ public class AppKV {
         getPref(context).edit().putBoolean(key, value).commit();
     }
 
+    public static String getStringConfig(Context context, String key, String fallback) {
+        return getPref(context).getString(key, fallback);
+    }
+
+    @SuppressLint("ApplySharedPref")
+    public static void setStringConfig(Context context, String key, String value) {
+        getPref(context).edit().putString(key, value).commit();
+    }
+
     private static SharedPreferences getPref(Context context) {
         return context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
     }
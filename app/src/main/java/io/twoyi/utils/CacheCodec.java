@@ -0,0 +1,23 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns values into the bytes which {@link ACache} stores and back, see {@link CacheCodecs} for the built-in ones.
+ */
+public interface CacheCodec<T> {
+
+    byte[] encode(T value) throws IOException;
+
+    /**
+     * @param data the stored bytes, possibly a read-only view of a mapped file; must not be kept after returning.
+     */
+    T decode(ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,218 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The built-in {@link CacheCodec}s.
+ */
+public final class CacheCodecs {
+
+    private CacheCodecs() {
+    }
+
+    public static final CacheCodec<String> STRING = new CacheCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer data) {
+            return StandardCharsets.UTF_8.decode(data).toString();
+        }
+    };
+
+    public static final CacheCodec<JSONObject> JSON_OBJECT = new CacheCodec<JSONObject>() {
+        @Override
+        public byte[] encode(JSONObject value) {
+            return value.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public JSONObject decode(ByteBuffer data) throws IOException {
+            try {
+                return new JSONObject(StandardCharsets.UTF_8.decode(data).toString());
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    public static final CacheCodec<JSONArray> JSON_ARRAY = new CacheCodec<JSONArray>() {
+        @Override
+        public byte[] encode(JSONArray value) {
+            return value.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public JSONArray decode(ByteBuffer data) throws IOException {
+            try {
+                return new JSONArray(StandardCharsets.UTF_8.decode(data).toString());
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    /**
+     * Java serialization, kept for {@link ACache#put(String, Serializable)}. Prefer a {@link BinaryCodec} for
+     * values which are cached often, it writes no class descriptors and needs no reflection.
+     */
+    public static final CacheCodec<Object> SERIALIZABLE = new CacheCodec<Object>() {
+        @Override
+        public byte[] encode(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            try {
+                out.writeObject(value);
+            } finally {
+                out.close();
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(ByteBuffer data) throws IOException {
+            ObjectInputStream in = new ObjectInputStream(new ACache.ByteBufferInputStream(data));
+            try {
+                return in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    /**
+     * Lossless WebP from Q on, PNG before it; decoding accepts both, so also what older versions stored.
+     */
+    public static final CacheCodec<Bitmap> BITMAP = bitmap(losslessWebp(), 100);
+
+    /**
+     * The pixels as they are in memory: the fastest to decode, but the largest unless compression is enabled.
+     * Hardware bitmaps can't be encoded.
+     */
+    public static final CacheCodec<Bitmap> RAW_BITMAP = new CacheCodec<Bitmap>() {
+        private static final int HEADER_SIZE = 12;
+
+        @Override
+        public byte[] encode(Bitmap value) throws IOException {
+            Bitmap.Config config = value.getConfig();
+            if (config == null || config == Bitmap.Config.HARDWARE) {
+                throw new IOException("can't read the pixels of config " + config);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + value.getByteCount());
+            buffer.putInt(value.getWidth()).putInt(value.getHeight()).putInt(config.ordinal());
+            value.copyPixelsToBuffer(buffer);
+            return buffer.array();
+        }
+
+        @Override
+        public Bitmap decode(ByteBuffer data) throws IOException {
+            if (data.remaining() < HEADER_SIZE) {
+                throw new IOException("truncated bitmap");
+            }
+            int width = data.getInt();
+            int height = data.getInt();
+            int config = data.getInt();
+            Bitmap.Config[] configs = Bitmap.Config.values();
+            if (config < 0 || config >= configs.length) {
+                throw new IOException("unknown bitmap config " + config);
+            }
+            Bitmap bitmap = Bitmap.createBitmap(width, height, configs[config]);
+            bitmap.copyPixelsFromBuffer(data);
+            return bitmap;
+        }
+    };
+
+    /**
+     * @param quality see {@link Bitmap#compress(Bitmap.CompressFormat, int, java.io.OutputStream)}.
+     */
+    public static CacheCodec<Bitmap> bitmap(final Bitmap.CompressFormat format, final int quality) {
+        return new CacheCodec<Bitmap>() {
+            @Override
+            public byte[] encode(Bitmap value) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (!value.compress(format, quality, out)) {
+                    throw new IOException("can't compress bitmap as " + format);
+                }
+                return out.toByteArray();
+            }
+
+            @Override
+            public Bitmap decode(ByteBuffer data) throws IOException {
+                Bitmap bitmap;
+                if (data.hasArray()) {
+                    bitmap = BitmapFactory.decodeByteArray(data.array(), data.arrayOffset() + data.position(),
+                            data.remaining());
+                } else {
+                    bitmap = BitmapFactory.decodeStream(new ACache.ByteBufferInputStream(data));
+                }
+                if (bitmap == null) {
+                    throw new IOException("can't decode bitmap");
+                }
+                return bitmap;
+            }
+        };
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat losslessWebp() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSLESS;
+        }
+        // WEBP at quality 100 is lossless only from Q on, before that it's lossy.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? Bitmap.CompressFormat.WEBP
+                : Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * A compact codec which writes the fields of a value itself, without the class descriptors of Java
+     * serialization.
+     */
+    public abstract static class BinaryCodec<T> implements CacheCodec<T> {
+
+        protected abstract void write(DataOutput out, T value) throws IOException;
+
+        protected abstract T read(DataInput in) throws IOException;
+
+        @Override
+        public final byte[] encode(T value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            write(out, value);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public final T decode(ByteBuffer data) throws IOException {
+            return read(new DataInputStream(new ACache.ByteBufferInputStream(data)));
+        }
+    }
+}
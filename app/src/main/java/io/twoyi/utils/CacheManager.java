@@ -6,9 +6,30 @@
 
 package io.twoyi.utils;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.LocaleList;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author weishu
@@ -16,11 +37,50 @@ import android.content.pm.PackageManager;
  */
 public class CacheManager {
 
+    private static final String TAG = "CacheManager";
+
     private static final byte[] LABEL_LOCK = new byte[0];
 
-    private static ACache sLabelCache;
+    // labels are small, this keeps a few thousands of them in memory.
+    private static final long LABEL_MEMORY_SIZE = 256 * 1024;
+
+    private static volatile ACache sLabelCache;
+
+    // the label loads in progress, callers for the same key wait for the same load.
+    private static final ConcurrentHashMap<String, FutureTask<String>> sLabelLoads = new ConcurrentHashMap<>();
+
+    private static final AtomicLong sLabelLoadCount = new AtomicLong();
+    private static final AtomicLong sLabelSharedCount = new AtomicLong();
+    private static final AtomicLong sLabelWaitNanos = new AtomicLong();
+
+    // version codes of the packages seen so far, dropped when a package changes.
+    private static final ConcurrentHashMap<String, Long> sVersionCodes = new ConcurrentHashMap<>();
+
+    private static final int PREFETCH_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(PREFETCH_THREADS,
+            PREFETCH_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "label-prefetch-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static volatile int sLastPrefetchCount;
+    private static volatile long sLastPrefetchNanos;
 
     public static ACache getLabelCache(Context context) {
+        ACache labelCache = sLabelCache;
+        if (labelCache != null) {
+            return labelCache;
+        }
         synchronized (LABEL_LOCK) {
             if (sLabelCache != null) {
                 return sLabelCache;
@@ -30,13 +90,18 @@ public class CacheManager {
                 appContext = context;
             }
 
-            sLabelCache = ACache.get(appContext, "labelCache");
+            registerLabelListeners(appContext);
+
+            // labels are cheap to reload, losing the last unflushed ones is fine.
+            sLabelCache = ACache.get(appContext, "labelCache")
+                    .enableMemoryTier(LABEL_MEMORY_SIZE)
+                    .enableWriteBehind();
             return sLabelCache;
         }
     }
 
-    public static String getLabel(Context context, ApplicationInfo info, PackageManager pm) {
-        PackageManager packageManager;
+    public static String getLabel(Context context, final ApplicationInfo info, PackageManager pm) {
+        final PackageManager packageManager;
         if (pm != null) {
             packageManager = pm;
         } else {
@@ -47,17 +112,226 @@ public class CacheManager {
             return null;
         }
 
-        String key = info.packageName;
-        ACache labelCache = getLabelCache(context);
-        synchronized (LABEL_LOCK) {
-            String label = labelCache.getAsString(key);
-            if (label == null) {
+        final ACache labelCache = getLabelCache(context);
+        final String key = labelKey(info.packageName, versionCode(packageManager, info.packageName));
+        String label = labelCache.getAsString(key);
+        if (label != null) {
+            return label;
+        }
+
+        FutureTask<String> load = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
                 // 缓存没有，那么直接读
-                String label1 = info.loadLabel(packageManager).toString();
-                labelCache.put(key, label1);
-                return label1;
+                String label = info.loadLabel(packageManager).toString();
+                labelCache.put(key, label);
+                return label;
             }
-            return label;
+        });
+        FutureTask<String> running = sLabelLoads.putIfAbsent(key, load);
+        if (running == null) {
+            sLabelLoadCount.incrementAndGet();
+            try {
+                load.run();
+            } finally {
+                sLabelLoads.remove(key, load);
+            }
+            running = load;
+        } else {
+            sLabelSharedCount.incrementAndGet();
+        }
+        return await(running);
+    }
+
+    /**
+     * Like {@link #getLabel(Context, ApplicationInfo, PackageManager)}, without looking up the version code.
+     */
+    public static String getLabel(Context context, PackageInfo info, PackageManager pm) {
+        if (info == null) {
+            return null;
+        }
+        sVersionCodes.put(info.packageName, versionCode(info));
+        return getLabel(context, info.applicationInfo, pm);
+    }
+
+    /**
+     * Load the labels of all installed packages into the cache, in parallel on a small pool.
+     * Blocks until all of them are loaded, must not be called on the main thread.
+     */
+    public static void prefetchLabels(Context context) {
+        PackageManager packageManager = context.getPackageManager();
+        List<PackageInfo> packages = packageManager.getInstalledPackages(0);
+        recordVersionCodes(packages);
+        List<ApplicationInfo> apps = new ArrayList<>(packages.size());
+        for (PackageInfo info : packages) {
+            if (info.applicationInfo != null) {
+                apps.add(info.applicationInfo);
+            }
+        }
+        prefetch(context, apps);
+    }
+
+    /**
+     * Load the labels of the given apps into the cache, in parallel on a small pool.
+     * Blocks until all of them are loaded, must not be called on the main thread.
+     */
+    public static void prefetchLabels(Context context, List<ApplicationInfo> apps) {
+        for (ApplicationInfo info : apps) {
+            if (!sVersionCodes.containsKey(info.packageName)) {
+                // an ApplicationInfo has no version code: one query for all of them, instead of one
+                // getPackageInfo per app for the label key
+                recordVersionCodes(context.getPackageManager().getInstalledPackages(0));
+                break;
+            }
+        }
+        prefetch(context, apps);
+    }
+
+    private static void recordVersionCodes(List<PackageInfo> packages) {
+        for (PackageInfo info : packages) {
+            sVersionCodes.put(info.packageName, versionCode(info));
+        }
+    }
+
+    private static void prefetch(final Context context, List<ApplicationInfo> apps) {
+        long start = System.nanoTime();
+        final PackageManager packageManager = context.getPackageManager();
+        getLabelCache(context);
+        List<Callable<String>> tasks = new ArrayList<>(apps.size());
+        for (final ApplicationInfo info : apps) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() {
+                    return getLabel(context, info, packageManager);
+                }
+            });
+        }
+        try {
+            // a failed label is loaded again by getLabel, no need to look at the results
+            PREFETCH_EXECUTOR.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        sLastPrefetchCount = apps.size();
+        sLastPrefetchNanos = System.nanoTime() - start;
+        Log.i(TAG, "prefetched " + apps.size() + " labels in "
+                + TimeUnit.NANOSECONDS.toMillis(sLastPrefetchNanos) + "ms");
+    }
+
+    private static String labelKey(String packageName, long versionCode) {
+        // the default follows the system locale, keys of a new locale simply miss
+        return packageName + "_" + versionCode + "_" + LocaleList.getDefault().toLanguageTags();
+    }
+
+    private static long versionCode(PackageManager pm, String packageName) {
+        Long versionCode = sVersionCodes.get(packageName);
+        if (versionCode != null) {
+            return versionCode;
+        }
+        long code;
+        try {
+            code = versionCode(pm.getPackageInfo(packageName, 0));
+        } catch (PackageManager.NameNotFoundException e) {
+            // uninstalled meanwhile, don't remember it
+            return -1;
+        }
+        sVersionCodes.put(packageName, code);
+        return code;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long versionCode(PackageInfo info) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+    }
+
+    /**
+     * Labels are keyed by version code and locale, so a stale label is never read. On a package change only
+     * the entry of that package is dropped, labels of the previous locale stay for when it comes back.
+     */
+    private static void registerLabelListeners(Context appContext) {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null) {
+                    return;
+                }
+                String packageName = data.getSchemeSpecificPart();
+                Long versionCode = sVersionCodes.remove(packageName);
+                ACache labelCache = sLabelCache;
+                if (versionCode != null && labelCache != null) {
+                    labelCache.remove(labelKey(packageName, versionCode));
+                }
+            }
+        }, packageFilter);
+    }
+
+    private static String await(FutureTask<String> load) {
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    // the label is needed anyway, keep waiting and restore the flag
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            sLabelWaitNanos.addAndGet(System.nanoTime() - start);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static LabelStats getLabelStats() {
+        LabelStats stats = new LabelStats();
+        stats.loads = sLabelLoadCount.get();
+        stats.sharedLoads = sLabelSharedCount.get();
+        stats.waitNanos = sLabelWaitNanos.get();
+        stats.lastPrefetchCount = sLastPrefetchCount;
+        stats.lastPrefetchNanos = sLastPrefetchNanos;
+        return stats;
+    }
+
+    public static class LabelStats {
+        // labels loaded from the package manager.
+        public long loads;
+        // callers which waited for a load of the same label by another thread.
+        public long sharedLoads;
+        // total time callers waited for those loads.
+        public long waitNanos;
+        // how many labels the last prefetch loaded, and how long until all of them were cached.
+        public int lastPrefetchCount;
+        public long lastPrefetchNanos;
+
+        @Override
+        public String toString() {
+            return "LabelStats{" +
+                    "loads=" + loads +
+                    ", sharedLoads=" + sharedLoads +
+                    ", waitNanos=" + waitNanos +
+                    ", lastPrefetchCount=" + lastPrefetchCount +
+                    ", lastPrefetchNanos=" + lastPrefetchNanos +
+                    '}';
         }
     }
 }
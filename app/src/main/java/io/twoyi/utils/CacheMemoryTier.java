@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded in-memory LRU tier of {@link ACache}, entries are weighed by their byte size.
+ */
+final class CacheMemoryTier {
+
+    // rough per entry overhead of the map node, the key and the array header.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long mMaxWeight;
+    private final LinkedHashMap<String, byte[]> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mWeight;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    CacheMemoryTier(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight: " + maxWeight);
+        }
+        mMaxWeight = maxWeight;
+    }
+
+    private static long weigh(String key, byte[] value) {
+        return ENTRY_OVERHEAD + key.length() * 2L + value.length;
+    }
+
+    synchronized byte[] get(String key) {
+        byte[] value = mEntries.get(key);
+        if (value == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Like {@link #get(String)}, but not counted as a hit or miss.
+     */
+    synchronized byte[] peek(String key) {
+        return mEntries.get(key);
+    }
+
+    synchronized void put(String key, byte[] value) {
+        long weight = weigh(key, value);
+        byte[] old = mEntries.remove(key);
+        if (old != null) {
+            mWeight -= weigh(key, old);
+        }
+        if (weight > mMaxWeight) {
+            // too large to be cached in memory at all.
+            return;
+        }
+
+        mEntries.put(key, value);
+        mWeight += weight;
+
+        Iterator<Map.Entry<String, byte[]>> iterator = mEntries.entrySet().iterator();
+        while (mWeight > mMaxWeight && iterator.hasNext()) {
+            Map.Entry<String, byte[]> eldest = iterator.next();
+            iterator.remove();
+            mWeight -= weigh(eldest.getKey(), eldest.getValue());
+            mEvictionCount++;
+        }
+    }
+
+    synchronized void remove(String key) {
+        byte[] old = mEntries.remove(key);
+        if (old != null) {
+            mWeight -= weigh(key, old);
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mWeight = 0;
+    }
+
+    synchronized long size() {
+        return mWeight;
+    }
+
+    synchronized long hitCount() {
+        return mHitCount;
+    }
+
+    synchronized long missCount() {
+        return mMissCount;
+    }
+
+    synchronized long evictionCount() {
+        return mEvictionCount;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The fixed binary header which {@link ACache} puts in front of every value.
+ *
+ * Layout, big endian: magic, version, flags, reserved short, write time in millis, ttl in seconds,
+ * value length and the crc32 of the value. The expiry can be checked from the header alone.
+ */
+final class CacheRecord {
+
+    static final int HEADER_SIZE = 28;
+
+    static final int NO_EXPIRY = -1;
+
+    // the value is deflated, prefixed with its inflated length.
+    static final byte FLAG_DEFLATE = 0x01;
+
+    // the expiry time of values without a ttl
+    static final long NEVER = Long.MAX_VALUE;
+
+    private static final int MAGIC = 0x41434852; // "ACHR"
+    private static final byte VERSION = 1;
+
+    // the ascii header of old entries: 13 digits of the write time, '-', the seconds and a space.
+    private static final int LEGACY_TIME_DIGITS = 13;
+    private static final byte LEGACY_DASH = '-';
+    private static final byte LEGACY_SEPARATOR = ' ';
+
+    final byte flags;
+    final long writeTime;
+    final int ttl;
+    final int length;
+    final int checksum;
+
+    private CacheRecord(byte flags, long writeTime, int ttl, int length, int checksum) {
+        this.flags = flags;
+        this.writeTime = writeTime;
+        this.ttl = ttl;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    boolean isExpired(long now) {
+        return now > expireAt();
+    }
+
+    long expireAt() {
+        return ttl == NO_EXPIRY ? NEVER : writeTime + ttl * 1000L;
+    }
+
+    /**
+     * @return the expiry time of an encoded record, or {@link #NEVER} if data doesn't start with a header.
+     */
+    static long expireAt(byte[] data) {
+        CacheRecord record = parse(data);
+        return record == null ? NEVER : record.expireAt();
+    }
+
+    /**
+     * @return whether data holds exactly this header and an intact value.
+     */
+    boolean verify(byte[] data) {
+        return data.length == HEADER_SIZE + length && checksum(data, HEADER_SIZE, length) == checksum;
+    }
+
+    /**
+     * Like {@link #verify(byte[])} for the remaining bytes of the buffer, its position is not changed.
+     */
+    boolean verify(ByteBuffer buffer) {
+        if (buffer.remaining() != HEADER_SIZE + length) {
+            return false;
+        }
+        ByteBuffer value = buffer.duplicate();
+        value.position(value.position() + HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(value);
+        return (int) crc.getValue() == checksum;
+    }
+
+    static byte[] encode(byte[] value, int ttl) {
+        return encode(value, ttl, (byte) 0);
+    }
+
+    static byte[] encode(byte[] value, int ttl, byte flags) {
+        return encode(value, 0, value.length, ttl, System.currentTimeMillis(), flags);
+    }
+
+    private static byte[] encode(byte[] value, int offset, int length, int ttl, long writeTime) {
+        return encode(value, offset, length, ttl, writeTime, (byte) 0);
+    }
+
+    private static byte[] encode(byte[] value, int offset, int length, int ttl, long writeTime, byte flags) {
+        byte[] data = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(data)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .put(flags)
+                .putShort((short) 0)
+                .putLong(writeTime)
+                .putInt(ttl)
+                .putInt(length)
+                .putInt(checksum(value, offset, length));
+        System.arraycopy(value, offset, data, HEADER_SIZE, length);
+        return data;
+    }
+
+    /**
+     * Parse the header at the position of the buffer, the position is not changed.
+     *
+     * @return the header, or null if the buffer doesn't start with one.
+     */
+    static CacheRecord parse(ByteBuffer buffer) {
+        int base = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(base) != MAGIC || buffer.get(base + 4) != VERSION) {
+            return null;
+        }
+        int length = buffer.getInt(base + 20);
+        if (length < 0) {
+            return null;
+        }
+        return new CacheRecord(buffer.get(base + 5), buffer.getLong(base + 8), buffer.getInt(base + 16), length,
+                buffer.getInt(base + 24));
+    }
+
+    static CacheRecord parse(byte[] data) {
+        return parse(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Convert a value written before the binary header existed, keeping its ascii expiry info if any.
+     */
+    static byte[] fromLegacy(byte[] data) {
+        int separator = legacySeparator(data);
+        if (separator < 0) {
+            return encode(data, 0, data.length, NO_EXPIRY, System.currentTimeMillis());
+        }
+        long writeTime = parseDigits(data, 0, LEGACY_TIME_DIGITS);
+        long ttl = parseDigits(data, LEGACY_TIME_DIGITS + 1, separator);
+        return encode(data, separator + 1, data.length - separator - 1, (int) Math.min(ttl, Integer.MAX_VALUE), writeTime);
+    }
+
+    /**
+     * @return the index of the space which ends the ascii expiry info, or -1 if there is none.
+     */
+    private static int legacySeparator(byte[] data) {
+        if (data.length <= LEGACY_TIME_DIGITS + 2 || data[LEGACY_TIME_DIGITS] != LEGACY_DASH) {
+            return -1;
+        }
+        for (int i = 0; i < LEGACY_TIME_DIGITS; i++) {
+            if (!isDigit(data[i])) {
+                return -1;
+            }
+        }
+        for (int i = LEGACY_TIME_DIGITS + 1; i < data.length; i++) {
+            if (data[i] == LEGACY_SEPARATOR) {
+                return i > LEGACY_TIME_DIGITS + 1 ? i : -1;
+            }
+            if (!isDigit(data[i])) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static long parseDigits(byte[] data, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + (data[i] - '0');
+        }
+        return value;
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
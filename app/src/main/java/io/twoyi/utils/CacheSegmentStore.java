@@ -0,0 +1,852 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A log-structured {@link CacheStore}: values are appended to segment files and located through an
+ * in-memory key -> offset index.
+ *
+ * Removals and evictions append tombstones. Segments which are mostly garbage are compacted in the
+ * background, and the index is checkpointed so that opening the store only replays the records
+ * written after the last checkpoint.
+ */
+final class CacheSegmentStore implements CacheStore {
+
+    private static final String TAG = "CacheSegmentStore";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "index.ckpt";
+
+    // record: magic, key length, value length (or TOMBSTONE), crc32 of key and value, key, value
+    private static final int RECORD_MAGIC = 0xACAC5E61;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+
+    private static final int CHECKPOINT_MAGIC = 0xACAC1D01;
+    private static final int CHECKPOINT_VERSION = 2;
+
+    private static final long SEGMENT_MAX_SIZE = 4 * 1024 * 1024;
+    // sealed segments with less live data than this are compacted
+    private static final float COMPACT_LIVE_RATIO = 0.5f;
+    private static final int CHECKPOINT_INTERVAL = 256;
+    // the expiry queue is rebuilt when it holds this many more entries than the index
+    private static final int EXPIRY_QUEUE_SLACK = 1024;
+
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "acache-segment");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Where a live record is, mutated in place by compaction; only accessed under the store lock.
+     */
+    private static final class Location {
+        final String key;
+        int segment;
+        long offset;
+        int keyLength;
+        int valueLength;
+        final long expireAt;
+        boolean dead;
+
+        Location(String key, int segment, long offset, int keyLength, int valueLength, long expireAt) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.expireAt = expireAt;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long length;
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.length = channel.size();
+        }
+    }
+
+    private final File mDir;
+    private final long mSizeLimit;
+    private final int mCountLimit;
+
+    // access ordered, the eldest entry is evicted first
+    private final LinkedHashMap<String, Location> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+    // values with a ttl ordered by expiry, replaced and removed ones are skipped lazily
+    private final PriorityQueue<Location> mExpiryQueue = new PriorityQueue<>(16,
+            (l1, l2) -> Long.compare(l1.expireAt, l2.expireAt));
+    private Segment mActive;
+    private long mSize;
+    private int mMutations;
+    private boolean mBackgroundScheduled;
+
+    CacheSegmentStore(File dir, long sizeLimit, int countLimit) {
+        mDir = dir;
+        mSizeLimit = sizeLimit;
+        mCountLimit = countLimit;
+
+        long start = System.nanoTime();
+        boolean fromCheckpoint = false;
+        synchronized (this) {
+            try {
+                fromCheckpoint = open();
+            } catch (IOException e) {
+                Log.w(TAG, "open segments failed, start over", e);
+                reset();
+            }
+        }
+        Log.i(TAG, "open " + dir + ": " + mIndex.size() + " entries in " + mSegments.size() + " segments, "
+                + (System.nanoTime() - start) / 1000000 + " ms, from checkpoint: " + fromCheckpoint);
+    }
+
+    private File segmentFile(int id) {
+        return new File(mDir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return whether the index is recovered from a checkpoint.
+     */
+    private boolean open() throws IOException {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    mSegments.put(id, new Segment(id, file));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        long[] position = loadCheckpoint();
+        boolean fromCheckpoint = position != null;
+        for (Segment segment : mSegments.values()) {
+            if (!fromCheckpoint || segment.id > position[0]) {
+                replay(segment, 0);
+            } else if (segment.id == position[0]) {
+                replay(segment, position[1]);
+            }
+        }
+
+        // entries of segments which are gone can't be read any more.
+        long size = 0;
+        Iterator<Location> iterator = mIndex.values().iterator();
+        while (iterator.hasNext()) {
+            Location location = iterator.next();
+            Segment segment = mSegments.get(location.segment);
+            if (segment == null || location.offset + location.recordLength() > segment.length) {
+                iterator.remove();
+                continue;
+            }
+            segment.liveBytes += location.recordLength();
+            size += location.valueLength;
+            if (location.expireAt != CacheRecord.NEVER) {
+                mExpiryQueue.add(location);
+            }
+        }
+        mSize = size;
+
+        if (mSegments.isEmpty() || mSegments.lastEntry().getValue().length >= SEGMENT_MAX_SIZE) {
+            int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+            mSegments.put(id, new Segment(id, segmentFile(id)));
+        }
+        mActive = mSegments.lastEntry().getValue();
+
+        evictIfNeeded();
+        return fromCheckpoint;
+    }
+
+    private void reset() {
+        for (Segment segment : mSegments.values()) {
+            IOUtils.closeSilently(segment.channel);
+            //noinspection ResultOfMethodCallIgnored
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mIndex.clear();
+        mExpiryQueue.clear();
+        mSize = 0;
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDir, CHECKPOINT_FILE).delete();
+
+        try {
+            mActive = new Segment(0, segmentFile(0));
+            mSegments.put(0, mActive);
+        } catch (IOException e) {
+            throw new RuntimeException("can't create segment in " + mDir, e);
+        }
+    }
+
+    /**
+     * Apply the records of a segment to the index, a torn or corrupted tail is truncated.
+     */
+    private void replay(Segment segment, long from) throws IOException {
+        long position = from;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            long skipped = 0;
+            while (skipped < from) {
+                long n = in.skip(from - skipped);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                skipped += n;
+            }
+
+            CRC32 crc = new CRC32();
+            while (position < segment.length) {
+                int magic = in.readInt();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                int checksum = in.readInt();
+                if (magic != RECORD_MAGIC || keyLength < 0 || keyLength > MAX_KEY_LENGTH || valueLength < TOMBSTONE
+                        || position + RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0) > segment.length) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                crc.reset();
+                crc.update(key);
+                long expireAt = CacheRecord.NEVER;
+                if (valueLength > 0) {
+                    byte[] value = new byte[valueLength];
+                    in.readFully(value);
+                    crc.update(value);
+                    expireAt = CacheRecord.expireAt(value);
+                }
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                String k = new String(key, StandardCharsets.UTF_8);
+                Location old;
+                if (valueLength == TOMBSTONE) {
+                    old = mIndex.remove(k);
+                } else {
+                    old = mIndex.put(k, new Location(k, segment.id, position, keyLength, valueLength, expireAt));
+                }
+                if (old != null) {
+                    old.dead = true;
+                }
+                position += RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            }
+        } catch (EOFException ignored) {
+        }
+
+        if (position < segment.length) {
+            Log.w(TAG, "truncate " + segment.file + " from " + segment.length + " to " + position);
+            segment.channel.truncate(position);
+            segment.length = position;
+        }
+    }
+
+    /**
+     * @return the segment id and position to replay from, or null if there is no valid checkpoint.
+     */
+    private long[] loadCheckpoint() {
+        File file = new File(mDir, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        LinkedHashMap<String, Location> index = new LinkedHashMap<>(16, 0.75f, true);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                return null;
+            }
+            int activeId = in.readInt();
+            long activePosition = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                int segment = in.readInt();
+                long offset = in.readLong();
+                int valueLength = in.readInt();
+                long expireAt = in.readLong();
+                String k = new String(key, StandardCharsets.UTF_8);
+                index.put(k, new Location(k, segment, offset, key.length, valueLength, expireAt));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                Log.w(TAG, "checkpoint checksum mismatch");
+                return null;
+            }
+
+            mIndex.putAll(index);
+            return new long[]{activeId, activePosition};
+        } catch (IOException e) {
+            Log.w(TAG, "read checkpoint failed", e);
+            return null;
+        }
+    }
+
+    private void checkpoint() {
+        if (!mDir.isDirectory()) {
+            // deleted from outside, the next open starts over anyway.
+            return;
+        }
+        List<Map.Entry<String, Location>> entries;
+        Location[] locations;
+        Segment active;
+        int activeId;
+        long activePosition;
+        synchronized (this) {
+            mMutations = 0;
+            entries = new ArrayList<>(mIndex.entrySet());
+            locations = new Location[entries.size()];
+            for (int i = 0; i < locations.length; i++) {
+                Location l = entries.get(i).getValue();
+                locations[i] = new Location(l.key, l.segment, l.offset, l.keyLength, l.valueLength, l.expireAt);
+            }
+            active = mActive;
+            activeId = active.id;
+            activePosition = active.length;
+        }
+
+        try {
+            // the checkpoint must never point to data which is not on disk yet.
+            active.channel.force(false);
+        } catch (IOException ignored) {
+        }
+
+        File file = new File(mDir, CHECKPOINT_FILE);
+        File tmp = new File(mDir, CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(activeId);
+            out.writeLong(activePosition);
+            out.writeInt(locations.length);
+            for (int i = 0; i < locations.length; i++) {
+                byte[] key = entries.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(locations[i].segment);
+                out.writeLong(locations[i].offset);
+                out.writeInt(locations[i].valueLength);
+                out.writeLong(locations[i].expireAt);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "write checkpoint failed", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "rename checkpoint failed");
+        }
+    }
+
+    private static ByteBuffer encode(byte[] key, byte[] value) {
+        int valueLength = value == null ? TOMBSTONE : value.length;
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (value != null) {
+            crc.update(value);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + Math.max(valueLength, 0));
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(key.length);
+        buffer.putInt(valueLength);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(key);
+        if (value != null) {
+            buffer.put(value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Append a record to the active segment, must be called with the store lock held.
+     *
+     * @return the offset of the record in the active segment.
+     */
+    private long append(ByteBuffer record) throws IOException {
+        if (mActive.length > 0 && mActive.length + record.remaining() > SEGMENT_MAX_SIZE) {
+            int id = mActive.id + 1;
+            mActive = new Segment(id, segmentFile(id));
+            mSegments.put(id, mActive);
+        }
+
+        long offset = mActive.length;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += mActive.channel.write(record, position);
+        }
+        mActive.length = position;
+        return offset;
+    }
+
+    private void release(Location location) {
+        location.dead = true;
+        mSize -= location.valueLength;
+        Segment segment = mSegments.get(location.segment);
+        if (segment != null) {
+            segment.liveBytes -= location.recordLength();
+        }
+    }
+
+    private void appendTombstone(String key) throws IOException {
+        append(encode(key.getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    private void evictIfNeeded() throws IOException {
+        Iterator<Map.Entry<String, Location>> iterator = mIndex.entrySet().iterator();
+        while (mIndex.size() > 1 && (mSize > mSizeLimit || mIndex.size() > mCountLimit)) {
+            Map.Entry<String, Location> eldest = iterator.next();
+            iterator.remove();
+            release(eldest.getValue());
+            appendTombstone(eldest.getKey());
+        }
+    }
+
+    @Override
+    public byte[] read(String key) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Segment segment;
+            long offset;
+            int keyLength;
+            int valueLength;
+            synchronized (this) {
+                Location location = mIndex.get(key);
+                if (location == null) {
+                    return null;
+                }
+                segment = mSegments.get(location.segment);
+                offset = location.offset;
+                keyLength = location.keyLength;
+                valueLength = location.valueLength;
+            }
+            if (segment == null) {
+                return null;
+            }
+
+            try {
+                byte[] record = readRecord(segment, offset, RECORD_HEADER_SIZE + keyLength + valueLength);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                CRC32 crc = new CRC32();
+                crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+                if (buffer.getInt() != RECORD_MAGIC || buffer.getInt() != keyLength
+                        || buffer.getInt() != valueLength || buffer.getInt() != (int) crc.getValue()) {
+                    Log.w(TAG, "corrupted record of " + key + " in " + segment.file);
+                    remove(key);
+                    return null;
+                }
+                return Arrays.copyOfRange(record, RECORD_HEADER_SIZE + keyLength, record.length);
+            } catch (ClosedChannelException e) {
+                // the segment has been compacted, look up the new location.
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ByteBuffer map(String key) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Segment segment;
+            long offset;
+            int keyLength;
+            int valueLength;
+            synchronized (this) {
+                Location location = mIndex.get(key);
+                if (location == null) {
+                    return null;
+                }
+                if (location.valueLength < MAP_THRESHOLD) {
+                    break;
+                }
+                segment = mSegments.get(location.segment);
+                offset = location.offset;
+                keyLength = location.keyLength;
+                valueLength = location.valueLength;
+            }
+            if (segment == null) {
+                return null;
+            }
+
+            try {
+                // the mapping stays valid after the segment is compacted and deleted.
+                ByteBuffer header = ByteBuffer.wrap(readRecord(segment, offset, RECORD_HEADER_SIZE));
+                if (header.getInt() != RECORD_MAGIC || header.getInt() != keyLength || header.getInt() != valueLength) {
+                    Log.w(TAG, "corrupted record of " + key + " in " + segment.file);
+                    remove(key);
+                    return null;
+                }
+                return segment.channel.map(FileChannel.MapMode.READ_ONLY, offset + RECORD_HEADER_SIZE + keyLength, valueLength);
+            } catch (ClosedChannelException e) {
+                // compacted, retry with the new location.
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        byte[] value = read(key);
+        return value == null ? null : ByteBuffer.wrap(value);
+    }
+
+    @Override
+    public int readHead(String key, byte[] buffer) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Segment segment;
+            long offset;
+            int length;
+            synchronized (this) {
+                Location location = mIndex.get(key);
+                if (location == null) {
+                    return -1;
+                }
+                segment = mSegments.get(location.segment);
+                offset = location.offset + RECORD_HEADER_SIZE + location.keyLength;
+                length = Math.min(buffer.length, location.valueLength);
+            }
+            if (segment == null) {
+                return -1;
+            }
+
+            try {
+                // the record checksum covers the whole value, it's verified by the full read.
+                System.arraycopy(readRecord(segment, offset, length), 0, buffer, 0, length);
+                return length;
+            } catch (ClosedChannelException e) {
+                // compacted, retry with the new location.
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readRecord(Segment segment, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int n = segment.channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException(segment.file + ": " + position);
+            }
+            position += n;
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public boolean write(String key, byte[] value, long expireAt) {
+        ByteBuffer record = encode(key.getBytes(StandardCharsets.UTF_8), value);
+        int keyLength = record.getInt(4);
+        synchronized (this) {
+            try {
+                long offset = append(record);
+                Location location = new Location(key, mActive.id, offset, keyLength, value.length, expireAt);
+                Location old = mIndex.put(key, location);
+                if (old != null) {
+                    release(old);
+                }
+                mSize += location.valueLength;
+                mActive.liveBytes += location.recordLength();
+                if (expireAt != CacheRecord.NEVER) {
+                    mExpiryQueue.add(location);
+                    if (mExpiryQueue.size() > mIndex.size() * 2 + EXPIRY_QUEUE_SLACK) {
+                        rebuildExpiryQueue();
+                    }
+                }
+
+                evictIfNeeded();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            scheduleBackgroundIfNeeded();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(String key) {
+        Location location = mIndex.remove(key);
+        if (location == null) {
+            return false;
+        }
+        release(location);
+        try {
+            appendTombstone(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        scheduleBackgroundIfNeeded();
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Location location : mIndex.values()) {
+            location.dead = true;
+        }
+        reset();
+    }
+
+    @Override
+    public File file(String key) {
+        return null;
+    }
+
+    @Override
+    public void sweep(long now, long deadline, ACache.SweepResult result) {
+        synchronized (this) {
+            try {
+                while (System.nanoTime() < deadline) {
+                    Location location = mExpiryQueue.peek();
+                    if (location == null || location.expireAt >= now) {
+                        result.complete = true;
+                        break;
+                    }
+                    mExpiryQueue.poll();
+                    if (location.dead) {
+                        continue;
+                    }
+                    mIndex.remove(location.key);
+                    release(location);
+                    appendTombstone(location.key);
+                    result.entries++;
+                    result.bytes += location.valueLength;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (result.entries > 0) {
+                scheduleBackgroundIfNeeded();
+            }
+        }
+    }
+
+    private void rebuildExpiryQueue() {
+        mExpiryQueue.clear();
+        for (Location location : mIndex.values()) {
+            if (location.expireAt != CacheRecord.NEVER) {
+                mExpiryQueue.add(location);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized int count() {
+        return mIndex.size();
+    }
+
+    @Override
+    public void close() {
+        try {
+            // compaction and checkpoints run on the background thread, let the scheduled ones finish.
+            BACKGROUND.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "wait for background work failed", e);
+        }
+        synchronized (this) {
+            for (Segment segment : mSegments.values()) {
+                IOUtils.closeSilently(segment.channel);
+            }
+        }
+    }
+
+    private Segment pickCompactionVictim() {
+        Segment victim = null;
+        for (Segment segment : mSegments.values()) {
+            if (segment == mActive || segment.liveBytes >= segment.length * COMPACT_LIVE_RATIO) {
+                continue;
+            }
+            if (victim == null || segment.liveBytes * victim.length < victim.liveBytes * segment.length) {
+                victim = segment;
+            }
+        }
+        return victim;
+    }
+
+    private void scheduleBackgroundIfNeeded() {
+        mMutations++;
+        if (mBackgroundScheduled) {
+            return;
+        }
+        if (mMutations < CHECKPOINT_INTERVAL && pickCompactionVictim() == null) {
+            return;
+        }
+        mBackgroundScheduled = true;
+        BACKGROUND.execute(() -> {
+            synchronized (this) {
+                mBackgroundScheduled = false;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.w(TAG, "compact failed", e);
+            }
+            checkpoint();
+        });
+    }
+
+    private void compact() throws IOException {
+        while (true) {
+            Segment victim;
+            List<Map.Entry<String, Location>> live = new ArrayList<>();
+            boolean hasOlderSegment;
+            synchronized (this) {
+                victim = pickCompactionVictim();
+                if (victim == null) {
+                    return;
+                }
+                for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                    if (entry.getValue().segment == victim.id) {
+                        live.add(entry);
+                    }
+                }
+                hasOlderSegment = mSegments.firstKey() < victim.id;
+            }
+
+            long start = System.nanoTime();
+            long before = victim.length;
+
+            for (Map.Entry<String, Location> entry : live) {
+                Location location = entry.getValue();
+                long offset;
+                int length;
+                synchronized (this) {
+                    if (location.dead || location.segment != victim.id) {
+                        continue;
+                    }
+                    offset = location.offset;
+                    length = location.recordLength();
+                }
+
+                byte[] record = readRecord(victim, offset, length);
+
+                synchronized (this) {
+                    // it may have been overwritten or removed while we were reading it
+                    if (location.dead || location.segment != victim.id) {
+                        continue;
+                    }
+                    long newOffset = append(ByteBuffer.wrap(record));
+                    victim.liveBytes -= length;
+                    location.segment = mActive.id;
+                    location.offset = newOffset;
+                    mActive.liveBytes += length;
+                }
+            }
+
+            if (hasOlderSegment) {
+                // tombstones still hide records in older segments, keep those of keys which are still absent
+                for (String key : readTombstones(victim)) {
+                    synchronized (this) {
+                        if (!mIndex.containsKey(key)) {
+                            appendTombstone(key);
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                // the store may have been cleared meanwhile, don't touch a new segment with the same id.
+                if (mSegments.get(victim.id) == victim) {
+                    mSegments.remove(victim.id);
+                }
+                IOUtils.closeSilently(victim.channel);
+                //noinspection ResultOfMethodCallIgnored
+                victim.file.delete();
+            }
+
+            Log.i(TAG, "compact " + victim.file.getName() + ": " + live.size() + " live records of " + before + " bytes in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    private static List<String> readTombstones(Segment segment) throws IOException {
+        List<String> keys = new ArrayList<>();
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.length) {
+            ByteBuffer header = ByteBuffer.wrap(readRecord(segment, position, RECORD_HEADER_SIZE));
+            header.getInt();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            if (valueLength == TOMBSTONE) {
+                byte[] key = readRecord(segment, position + RECORD_HEADER_SIZE, keyLength);
+                keys.add(new String(key, StandardCharsets.UTF_8));
+            }
+            position += RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+        return keys;
+    }
+}
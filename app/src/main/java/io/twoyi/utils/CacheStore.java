@@ -0,0 +1,73 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * The persistent backend of {@link ACache}, it stores opaque values by key and enforces the size limits.
+ */
+interface CacheStore {
+
+    /**
+     * Values at least this large are memory mapped by {@link #map(String)} instead of read into the heap.
+     */
+    int MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * @return the stored value, or null if there is none or it can't be read.
+     */
+    byte[] read(String key);
+
+    /**
+     * Read only the beginning of the stored value, e.g. its header.
+     *
+     * @return the number of bytes read into buffer, or -1 if there is no value.
+     */
+    int readHead(String key, byte[] buffer);
+
+    /**
+     * @return the stored value as a buffer which is memory mapped if it's at least {@link #MAP_THRESHOLD}
+     * bytes, or null if there is none or it can't be read.
+     */
+    ByteBuffer map(String key);
+
+    /**
+     * @param expireAt the time in millis after which the value can be swept, {@link CacheRecord#NEVER} for none.
+     * @return true if the value has been written completely.
+     */
+    boolean write(String key, byte[] value, long expireAt);
+
+    boolean remove(String key);
+
+    void clear();
+
+    /**
+     * Remove values which expired before now in expiry order, stopping at the deadline.
+     *
+     * @param deadline in {@link System#nanoTime()}.
+     */
+    void sweep(long now, long deadline, ACache.SweepResult result);
+
+    /**
+     * @return the file which holds only the value of the key, or null if the store doesn't keep one.
+     */
+    File file(String key);
+
+    /**
+     * @return the total bytes of all values.
+     */
+    long size();
+
+    int count();
+
+    /**
+     * Wait for the background work of the store and release its files, it can't be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,524 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file in parallel ranges and resumes where it stopped.
+ *
+ * The first request asks for one byte to learn whether the server supports ranges. If it does, the file is split
+ * into segments which are fetched on their own connections and written to {@code <dest>.part} at their offsets.
+ * The progress of each segment is saved in {@code <dest>.part.map}, a later call with the same url continues from
+ * there as long as the server still reports the same size and validator. Without range support it is a single
+ * stream from the start. The file is moved to its destination only when it's complete and, if a hash was given,
+ * matches it.
+ */
+public final class Downloader {
+
+    private static final String TAG = "Downloader";
+
+    private static final int MAP_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // smaller files aren't worth more connections.
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    // the segment map is saved at most this often while downloading, and always when stopping.
+    private static final long SAVE_INTERVAL_MS = 1000;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+
+    /**
+     * Progress of a download, called on the download threads, at most once per interval and once at the end.
+     */
+    public interface ProgressCallback {
+        /**
+         * @param total -1 if the server didn't tell.
+         */
+        void onProgress(long downloaded, long total);
+    }
+
+    /**
+     * The result of a download.
+     */
+    public static final class Result {
+        public long bytes;
+        // bytes which were already there from an earlier attempt.
+        public long resumedBytes;
+        public int segments;
+        public boolean ranges;
+        public long elapsedNanos;
+
+        public long bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (long) ((bytes - resumedBytes) * 1e9 / elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "bytes=" + bytes +
+                    ", resumedBytes=" + resumedBytes +
+                    ", segments=" + segments +
+                    ", ranges=" + ranges +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", bytesPerSecond=" + bytesPerSecond() +
+                    '}';
+        }
+    }
+
+    private final String mUrl;
+    private final File mDest;
+    private final File mPartFile;
+    private final File mMapFile;
+
+    private int mParallelism = 4;
+    private int mRetries = 3;
+    private int mTimeoutMs = 10000;
+    private FileHasher.Algorithm mHashAlgorithm;
+    private String mExpectedHash;
+    private ProgressCallback mCallback;
+    private long mProgressIntervalMs = 200;
+
+    private final AtomicLong mDownloaded = new AtomicLong();
+    private final AtomicLong mLastProgress = new AtomicLong();
+    private final AtomicLong mLastSave = new AtomicLong();
+    private volatile long mTotal = -1;
+    // the segments being downloaded with ranges and the validator they belong to, saved to the map.
+    private volatile List<Segment> mSegments;
+    private String mValidator;
+
+    public Downloader(String url, File dest) {
+        mUrl = url;
+        mDest = dest;
+        mPartFile = new File(dest.getPath() + ".part");
+        mMapFile = new File(dest.getPath() + ".part.map");
+    }
+
+    /**
+     * The number of segments fetched at the same time, 4 by default.
+     */
+    public Downloader setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * How often a failed segment is requested again before the download fails, 3 by default.
+     */
+    public Downloader setRetries(int retries) {
+        mRetries = Math.max(0, retries);
+        return this;
+    }
+
+    public Downloader setTimeout(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /**
+     * @param hash hex, compared ignoring case.
+     */
+    public Downloader setExpectedHash(FileHasher.Algorithm algorithm, String hash) {
+        mHashAlgorithm = algorithm;
+        mExpectedHash = hash;
+        return this;
+    }
+
+    public Downloader setProgressCallback(ProgressCallback callback, long intervalMs) {
+        mCallback = callback;
+        mProgressIntervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Download to the destination, replacing it. On failure the parts stay for the next call to resume.
+     *
+     * @throws IOException if the download failed, or the hash didn't match; the parts are deleted then.
+     */
+    public Result download() throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        mLastProgress.set(nowMs());
+        mLastSave.set(nowMs());
+
+        HttpURLConnection probe = open(0, 0);
+        List<Segment> segments;
+        try {
+            int code = probe.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long total = parseTotal(probe.getHeaderField("Content-Range"));
+                String validator = validator(probe);
+                segments = loadMap(total, validator);
+                if (segments == null) {
+                    segments = split(total);
+                    //noinspection ResultOfMethodCallIgnored
+                    mPartFile.delete();
+                }
+                mTotal = total;
+                mValidator = validator;
+                mSegments = segments;
+                result.ranges = true;
+                closeBody(probe);
+                downloadSegments(segments);
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // no ranges, take the whole body from this response
+                mTotal = probe.getContentLengthLong();
+                segments = new ArrayList<>();
+                Segment segment = new Segment(0, mTotal < 0 ? Long.MAX_VALUE - 1 : mTotal - 1, 0);
+                segments.add(segment);
+                //noinspection ResultOfMethodCallIgnored
+                mMapFile.delete();
+                FileChannel channel = FileChannel.open(mPartFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    copy(probe, segment, channel);
+                } finally {
+                    IOUtils.closeSilently(channel);
+                }
+                if (mTotal >= 0 && segment.position != mTotal) {
+                    throw new IOException(mUrl + " ended at " + segment.position + " of " + mTotal);
+                }
+                mTotal = segment.position;
+            } else {
+                throw new IOException("unexpected response " + code + " for " + mUrl);
+            }
+        } finally {
+            probe.disconnect();
+        }
+
+        for (Segment segment : segments) {
+            result.resumedBytes += segment.resumedFrom - segment.start;
+        }
+        result.segments = segments.size();
+        result.bytes = mTotal;
+        reportProgress(true);
+
+        if (mExpectedHash != null) {
+            String actual = FileHasher.toHex(FileHasher.compute(mPartFile, mHashAlgorithm));
+            if (!actual.equalsIgnoreCase(mExpectedHash)) {
+                //noinspection ResultOfMethodCallIgnored
+                mPartFile.delete();
+                //noinspection ResultOfMethodCallIgnored
+                mMapFile.delete();
+                throw new IOException("hash mismatch for " + mUrl + ": " + actual);
+            }
+        }
+        Files.move(mPartFile.toPath(), mDest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        //noinspection ResultOfMethodCallIgnored
+        mMapFile.delete();
+
+        result.elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "downloaded " + mUrl + ": " + result);
+        return result;
+    }
+
+    private void downloadSegments(List<Segment> segments) throws IOException {
+        long done = 0;
+        for (Segment segment : segments) {
+            done += segment.position - segment.start;
+        }
+        mDownloaded.set(done);
+
+        final FileChannel channel = FileChannel.open(mPartFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mParallelism, segments.size()),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "download-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            List<Future<?>> futures = new ArrayList<>(segments.size());
+            for (final Segment segment : segments) {
+                if (segment.isDone()) {
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        downloadSegment(segment, channel);
+                        return null;
+                    }
+                }));
+            }
+
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        // the others stop at their next read
+                        executor.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("download of " + mUrl + " interrupted");
+                    break;
+                }
+            }
+            if (failure != null) {
+                // let the others stop before their progress is saved for the next attempt
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(mTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writeMap();
+                throw failure;
+            }
+            channel.force(false);
+        } finally {
+            executor.shutdownNow();
+            IOUtils.closeSilently(channel);
+        }
+    }
+
+    private void downloadSegment(Segment segment, FileChannel channel) throws IOException {
+        int attempt = 0;
+        while (true) {
+            HttpURLConnection connection = open(segment.position, segment.end);
+            try {
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("range not honored, response " + code + " for " + mUrl);
+                }
+                if (mValidator.length() > 0 && !mValidator.equals(validator(connection))) {
+                    throw new IOException(mUrl + " changed while downloading");
+                }
+                copy(connection, segment, channel);
+                if (!segment.isDone()) {
+                    throw new IOException("segment of " + mUrl + " ended at " + segment.position);
+                }
+                return;
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted() || attempt++ >= mRetries) {
+                    throw e;
+                }
+                Log.w(TAG, "retry segment at " + segment.position + " of " + mUrl, e);
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void copy(HttpURLConnection connection, Segment segment, FileChannel channel) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long remaining = segment.end - segment.position + 1;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("download of " + mUrl + " interrupted");
+                }
+                wrapped.clear().limit(read);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped, segment.position + wrapped.position());
+                }
+                segment.position += read;
+                remaining -= read;
+                mDownloaded.addAndGet(read);
+                reportProgress(false);
+                saveMap();
+            }
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+    }
+
+    private void reportProgress(boolean force) {
+        ProgressCallback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        long now = nowMs();
+        long last = mLastProgress.get();
+        if (!force && (now - last < mProgressIntervalMs || !mLastProgress.compareAndSet(last, now))) {
+            return;
+        }
+        callback.onProgress(mDownloaded.get(), mTotal);
+    }
+
+    private HttpURLConnection open(long from, long to) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        connection.setRequestProperty("User-Agent", "Twoyi/0.7.5");
+        // the sizes must be those of the file, not of a compressed transfer
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+        return connection;
+    }
+
+    private static void closeBody(HttpURLConnection connection) {
+        try {
+            IOUtils.closeSilently(connection.getInputStream());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long parseTotal(String contentRange) throws IOException {
+        Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("bad Content-Range: " + contentRange);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static String validator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null) {
+            return etag;
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        return lastModified == null ? "" : lastModified;
+    }
+
+    private List<Segment> split(long total) {
+        int count = (int) Math.max(1, Math.min(mParallelism, total / MIN_SEGMENT_SIZE));
+        List<Segment> segments = new ArrayList<>(count);
+        long size = total / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? total - 1 : start + size - 1;
+            segments.add(new Segment(start, end, start));
+        }
+        return segments;
+    }
+
+    /**
+     * The segments of an earlier attempt, or null if there is none or it was of another version of the file.
+     */
+    private List<Segment> loadMap(long total, String validator) {
+        if (!mMapFile.exists() || !mPartFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mMapFile));
+            if (in.readInt() != MAP_VERSION || !in.readUTF().equals(mUrl) || in.readLong() != total
+                    || !in.readUTF().equals(validator) || validator.isEmpty()) {
+                return null;
+            }
+            int count = in.readInt();
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                long position = in.readLong();
+                segments.add(new Segment(start, end, position));
+            }
+            return segments;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+    }
+
+    private void saveMap() {
+        long now = nowMs();
+        long last = mLastSave.get();
+        if (mSegments == null || now - last < SAVE_INTERVAL_MS || !mLastSave.compareAndSet(last, now)) {
+            return;
+        }
+        writeMap();
+    }
+
+    private synchronized void writeMap() {
+        List<Segment> segments = mSegments;
+        File tmp = new File(mMapFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(MAP_VERSION);
+            out.writeUTF(mUrl);
+            out.writeLong(mTotal);
+            out.writeUTF(mValidator);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                out.writeLong(segment.start);
+                out.writeLong(segment.end);
+                out.writeLong(segment.position);
+            }
+            out.close();
+            out = null;
+            Files.move(tmp.toPath(), mMapFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "can't save the segments of " + mUrl, e);
+        } finally {
+            IOUtils.closeSilently(out);
+        }
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static final class Segment {
+        final long start;
+        // inclusive, like in a Range header.
+        final long end;
+        final long resumedFrom;
+        volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+            this.resumedFrom = position;
+        }
+
+        boolean isDone() {
+            return position > end;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashes files and remembers the results, so verifying an unchanged rom or apk again costs a stat instead of a
+ * full read.
+ *
+ * A result is keyed by the path and is valid while the size, the mtime and the inode of the file stay the same.
+ * The results are kept in an {@link ACache}, so they survive restarts.
+ */
+public final class FileHasher {
+
+    private static final String CACHE_NAME = "fileHashes";
+
+    // a few hundred results, the stat of a repeated check shouldn't wait for the disk.
+    private static final long MEMORY_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public enum Algorithm {
+        MD5,
+        SHA256,
+        // 64 bit xxHash: several times faster than MD5, for change detection, not for security.
+        XXH64
+    }
+
+    private static volatile FileHasher sInstance;
+
+    private final ACache mCache;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mHashedBytes = new AtomicLong();
+    private final AtomicLong mHashNanos = new AtomicLong();
+
+    public FileHasher(ACache cache) {
+        mCache = cache;
+    }
+
+    public static FileHasher get(Context context) {
+        FileHasher hasher = sInstance;
+        if (hasher != null) {
+            return hasher;
+        }
+        synchronized (FileHasher.class) {
+            if (sInstance == null) {
+                sInstance = new FileHasher(ACache.get(context, CACHE_NAME).enableMemoryTier(MEMORY_SIZE));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * The hash of the file, read from the cache if the file didn't change since it was hashed.
+     */
+    public byte[] hash(File file, Algorithm algorithm) throws IOException {
+        String path = file.getAbsolutePath();
+        String key = algorithm.name() + ":" + path;
+        BasicFileAttributes before = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        Entry entry = mCache.getAs(key, ENTRY_CODEC);
+        // keys are hashed to file names in the cache, so the path is checked as well
+        if (entry != null && entry.path.equals(path) && entry.matches(before)) {
+            mHits.incrementAndGet();
+            return entry.digest.clone();
+        }
+
+        mMisses.incrementAndGet();
+        long start = System.nanoTime();
+        byte[] digest = compute(file, algorithm);
+        mHashNanos.addAndGet(System.nanoTime() - start);
+        mHashedBytes.addAndGet(before.size());
+
+        BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        entry = new Entry(path, after, digest);
+        // if it changed while it was read, the digest may be of neither version, don't keep it
+        if (entry.matches(before)) {
+            mCache.put(key, entry, ENTRY_CODEC);
+        }
+        return digest;
+    }
+
+    public String hashHex(File file, Algorithm algorithm) throws IOException {
+        return toHex(hash(file, algorithm));
+    }
+
+    /**
+     * Hash the file without the cache.
+     */
+    public static byte[] compute(File file, Algorithm algorithm) throws IOException {
+        Digest digest = newDigest(algorithm);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+        return digest.digest();
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static Digest newDigest(Algorithm algorithm) throws IOException {
+        if (algorithm == Algorithm.XXH64) {
+            return new Xxh64();
+        }
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm == Algorithm.MD5 ? "MD5" : "SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        return new Digest() {
+            @Override
+            public void update(byte[] data, int offset, int length) {
+                messageDigest.update(data, offset, length);
+            }
+
+            @Override
+            public byte[] digest() {
+                return messageDigest.digest();
+            }
+        };
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = mHits.get();
+        stats.misses = mMisses.get();
+        stats.hashedBytes = mHashedBytes.get();
+        stats.hashNanos = mHashNanos.get();
+        return stats;
+    }
+
+    public static class Stats {
+        // hashes answered from the cache.
+        public long hits;
+        // hashes which read the file.
+        public long misses;
+        public long hashedBytes;
+        public long hashNanos;
+
+        public long bytesPerSecond() {
+            return hashNanos == 0 ? 0 : (long) (hashedBytes * 1e9 / hashNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "hits=" + hits +
+                    ", misses=" + misses +
+                    ", hashedBytes=" + hashedBytes +
+                    ", hashNanos=" + hashNanos +
+                    ", bytesPerSecond=" + bytesPerSecond() +
+                    '}';
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final long size;
+        final long mtimeNanos;
+        // (dev, inode) on linux, a replaced file has another one even with the same size and mtime.
+        final String fileKey;
+        final byte[] digest;
+
+        Entry(String path, long size, long mtimeNanos, String fileKey, byte[] digest) {
+            this.path = path;
+            this.size = size;
+            this.mtimeNanos = mtimeNanos;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        Entry(String path, BasicFileAttributes attrs, byte[] digest) {
+            this(path, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey(attrs), digest);
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                    && mtimeNanos == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && fileKey.equals(fileKey(attrs));
+        }
+
+        private static String fileKey(BasicFileAttributes attrs) {
+            Object key = attrs.fileKey();
+            return key == null ? "" : key.toString();
+        }
+    }
+
+    private static final CacheCodec<Entry> ENTRY_CODEC = new CacheCodecs.BinaryCodec<Entry>() {
+        @Override
+        protected void write(DataOutput out, Entry value) throws IOException {
+            out.writeUTF(value.path);
+            out.writeLong(value.size);
+            out.writeLong(value.mtimeNanos);
+            out.writeUTF(value.fileKey);
+            out.writeShort(value.digest.length);
+            out.write(value.digest);
+        }
+
+        @Override
+        protected Entry read(DataInput in) throws IOException {
+            String path = in.readUTF();
+            long size = in.readLong();
+            long mtimeNanos = in.readLong();
+            String fileKey = in.readUTF();
+            byte[] digest = new byte[in.readUnsignedShort()];
+            in.readFully(digest);
+            return new Entry(path, size, mtimeNanos, fileKey, digest);
+        }
+    };
+
+    private interface Digest {
+        void update(byte[] data, int offset, int length);
+
+        byte[] digest();
+    }
+
+    /**
+     * Streaming XXH64 with seed 0, the digest is the hash in big endian like the reference implementation prints it.
+     */
+    static final class Xxh64 implements Digest {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+
+        private long v1 = P1 + P2;
+        private long v2 = P2;
+        private long v3 = 0;
+        private long v4 = -P1;
+        private long total;
+        // the tail of the last update which didn't fill a stripe of 32 bytes.
+        private final byte[] pending = new byte[32];
+        private int pendingLength;
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            total += length;
+            int end = offset + length;
+            if (pendingLength > 0) {
+                int n = Math.min(32 - pendingLength, length);
+                System.arraycopy(data, offset, pending, pendingLength, n);
+                pendingLength += n;
+                offset += n;
+                if (pendingLength < 32) {
+                    return;
+                }
+                stripe(pending, 0);
+                pendingLength = 0;
+            }
+            for (; offset + 32 <= end; offset += 32) {
+                stripe(data, offset);
+            }
+            System.arraycopy(data, offset, pending, 0, end - offset);
+            pendingLength = end - offset;
+        }
+
+        private void stripe(byte[] data, int offset) {
+            v1 = round(v1, readLong(data, offset));
+            v2 = round(v2, readLong(data, offset + 8));
+            v3 = round(v3, readLong(data, offset + 16));
+            v4 = round(v4, readLong(data, offset + 24));
+        }
+
+        @Override
+        public byte[] digest() {
+            long h;
+            if (total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                        + Long.rotateLeft(v4, 18);
+                h = merge(h, v1);
+                h = merge(h, v2);
+                h = merge(h, v3);
+                h = merge(h, v4);
+            } else {
+                h = P5;
+            }
+            h += total;
+
+            int i = 0;
+            for (; i + 8 <= pendingLength; i += 8) {
+                h ^= round(0, readLong(pending, i));
+                h = Long.rotateLeft(h, 27) * P1 + P4;
+            }
+            if (i + 4 <= pendingLength) {
+                h ^= (readInt(pending, i) & 0xFFFFFFFFL) * P1;
+                h = Long.rotateLeft(h, 23) * P2 + P3;
+                i += 4;
+            }
+            for (; i < pendingLength; i++) {
+                h ^= (pending[i] & 0xFF) * P5;
+                h = Long.rotateLeft(h, 11) * P1;
+            }
+
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            h ^= h >>> 32;
+
+            byte[] digest = new byte[8];
+            for (int b = 7; b >= 0; b--) {
+                digest[b] = (byte) h;
+                h >>>= 8;
+            }
+            return digest;
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * P2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * P1;
+        }
+
+        private static long merge(long acc, long value) {
+            acc ^= round(0, value);
+            return acc * P1 + P4;
+        }
+
+        private static long readLong(byte[] data, int offset) {
+            return (readInt(data, offset) & 0xFFFFFFFFL) | ((long) readInt(data, offset + 4) << 32);
+        }
+
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16
+                    | (data[offset + 3] & 0xFF) << 24;
+        }
+    }
+}
@@ -6,6 +6,9 @@
 
 package io.twoyi.utils;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 
 import androidx.annotation.Keep;
@@ -13,18 +16,27 @@ import androidx.annotation.Keep;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Comparator;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author weishu
@@ -33,6 +45,24 @@ import java.util.List;
 @Keep
 public class IOUtils {
 
+    // each transferTo call copies at most this much, progress is reported in between.
+    private static final long COPY_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    // linux lseek whence values, OsConstants doesn't have them.
+    private static final int SEEK_DATA = 3;
+    private static final int SEEK_HOLE = 4;
+
+    /**
+     * Progress of a copy.
+     */
+    public interface CopyProgressCallback {
+        /**
+         * @return false to cancel the copy.
+         */
+        boolean onProgress(long copiedBytes, long totalBytes);
+    }
+
     public static void ensureCreated(File file) {
         if (!file.exists()) {
             boolean ret = file.mkdirs();
@@ -46,21 +76,7 @@ public class IOUtils {
         if (dir == null) {
             return false;
         }
-        boolean success = true;
-        if (dir.isDirectory()) {
-            String[] children = dir.list();
-            for (String file : children) {
-                boolean ret = deleteDir(new File(dir, file));
-                if (!ret) {
-                    success = false;
-                }
-            }
-            if (success) {
-                // if all subdirectory are deleted, delete the dir itself.
-                return dir.delete();
-            }
-        }
-        return dir.delete();
+        return deleteTree(dir, null);
     }
 
     public static void deleteAll(List<File> files) {
@@ -75,30 +91,123 @@ public class IOUtils {
     }
 
     public static void copyFile(File source, File target) throws IOException {
+        copyFile(source, target, false, null);
+    }
+
+    /**
+     * Copy a file in kernel with transferTo, falling back to a direct buffer. Holes of sparse files stay holes.
+     * The target is deleted if the copy fails or is cancelled after it was opened, a source which can't be read
+     * leaves it untouched.
+     *
+     * @param preserveAttributes also copy the modification time and the permissions.
+     * @param callback           may be null, returning false from it cancels the copy with an
+     *                           {@link InterruptedIOException}.
+     */
+    public static void copyFile(File source, File target, boolean preserveAttributes,
+                                CopyProgressCallback callback) throws IOException {
         FileInputStream inputStream = null;
-        FileOutputStream outputStream = null;
+        RandomAccessFile outputFile = null;
+        boolean opened = false;
+        boolean success = false;
         try {
             inputStream = new FileInputStream(source);
-            outputStream = new FileOutputStream(target);
+            outputFile = new RandomAccessFile(target, "rw");
+            opened = true;
+            outputFile.setLength(0);
             FileChannel iChannel = inputStream.getChannel();
-            FileChannel oChannel = outputStream.getChannel();
-
-            ByteBuffer buffer = ByteBuffer.allocate(1024);
-            while (true) {
-                buffer.clear();
-                int r = iChannel.read(buffer);
-                if (r == -1)
-                    break;
-                buffer.limit(buffer.position());
-                buffer.position(0);
-                oChannel.write(buffer);
+            FileChannel oChannel = outputFile.getChannel();
+            FileDescriptor fd = inputStream.getFD();
+
+            long size = iChannel.size();
+            long position = 0;
+            while (position < size) {
+                long dataStart = seek(fd, position, SEEK_DATA, size);
+                long dataEnd = dataStart < 0 ? -1 : seek(fd, dataStart, SEEK_HOLE, size);
+                if (dataEnd < 0) {
+                    // holes are not supported here, copy everything
+                    dataStart = position;
+                    dataEnd = size;
+                }
+                copyRange(iChannel, oChannel, dataStart, Math.min(dataEnd, size), size, source, callback);
+                position = dataEnd;
             }
+            // a trailing hole
+            outputFile.setLength(size);
+            success = true;
         } finally {
             closeSilently(inputStream);
-            closeSilently(outputStream);
+            closeSilently(outputFile);
+            if (opened && !success) {
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
+            }
+        }
+
+        if (preserveAttributes) {
+            copyAttributes(source, target);
         }
     }
 
+    /**
+     * @return the offset of the next data or hole at or after offset, size if there is none, or -1 if the
+     * file system can't tell.
+     */
+    private static long seek(FileDescriptor fd, long offset, int whence, long size) {
+        try {
+            return Os.lseek(fd, offset, whence);
+        } catch (ErrnoException e) {
+            return e.errno == OsConstants.ENXIO ? size : -1;
+        }
+    }
+
+    private static void copyRange(FileChannel iChannel, FileChannel oChannel, long start, long end, long size,
+                                  File source, CopyProgressCallback callback) throws IOException {
+        long position = start;
+        oChannel.position(position);
+        while (position < end) {
+            long transferred = iChannel.transferTo(position, Math.min(COPY_CHUNK_SIZE, end - position), oChannel);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            reportProgress(position, size, source, callback);
+        }
+
+        if (position < end) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = iChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException(source + " shrank while copying");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    // write may be partial
+                    oChannel.write(buffer, position + buffer.position());
+                }
+                position += read;
+                reportProgress(position, size, source, callback);
+            }
+        }
+    }
+
+    private static void reportProgress(long copied, long total, File source, CopyProgressCallback callback)
+            throws InterruptedIOException {
+        if (callback != null && !callback.onProgress(copied, total)) {
+            throw new InterruptedIOException("copy of " + source + " cancelled");
+        }
+    }
+
+    private static void copyAttributes(File source, File target) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(target.toPath(), PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(Files.getPosixFilePermissions(source.toPath()));
+        }
+        Files.setLastModifiedTime(target.toPath(), Files.getLastModifiedTime(source.toPath()));
+    }
+
     public static void closeSilently(Closeable closeable) {
         if (closeable == null) {
             return;
@@ -158,11 +267,62 @@ public class IOUtils {
     }
 
     public static boolean deleteDirectory(File directory) {
+        return deleteTree(directory, null);
+    }
+
+    /**
+     * Delete a tree post-order as it is walked, only the directories on the current path are open at a time.
+     * Symlinks are deleted, not followed. A failure doesn't stop the walk, the rest is still deleted.
+     *
+     * @param deletedBytes if not null, the size of every deleted file is added to it.
+     * @return true if everything was deleted.
+     */
+    public static boolean deleteTree(File root, final AtomicLong deletedBytes) {
+        Path rootPath = root.toPath();
+        if (!Files.exists(rootPath, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        final boolean[] success = {true};
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!deletePath(file)) {
+                        success[0] = false;
+                    } else if (deletedBytes != null && attrs.isRegularFile()) {
+                        deletedBytes.addAndGet(attrs.size());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    if (!deletePath(file)) {
+                        success[0] = false;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    if (!deletePath(dir)) {
+                        success[0] = false;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return false;
+        }
+        return success[0];
+    }
+
+    private static boolean deletePath(Path path) {
         try {
-            Files.walk(directory.toPath())
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(File::delete);
+            Files.delete(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            // someone else was faster
             return true;
         } catch (IOException e) {
             return false;
@@ -180,76 +340,21 @@ public class IOUtils {
      * Calculate MD5 hash of a file
      */
     public static byte[] md5(File file) throws IOException {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            try {
-                byte[] buffer = new byte[1024];
-                java.security.MessageDigest messageDigest = java.security.MessageDigest.getInstance("MD5");
-                int bytesRead;
-                do {
-                    bytesRead = fileInputStream.read(buffer);
-                    if (bytesRead > 0) {
-                        messageDigest.update(buffer, 0, bytesRead);
-                    }
-                } while (bytesRead != -1);
-                byte[] digest = messageDigest.digest();
-                fileInputStream.close();
-                return digest;
-            } catch (Throwable th) {
-                try {
-                    fileInputStream.close();
-                } catch (Throwable th2) {
-                    th.addSuppressed(th2);
-                }
-                throw th;
-            }
-        } catch (IOException | java.security.NoSuchAlgorithmException unused) {
-            return null;
-        }
+        return FileHasher.compute(file, FileHasher.Algorithm.MD5);
     }
 
     /**
      * Get MD5 sum as string
      */
     public static String md5sum(File file) throws IOException {
-        byte[] digest = md5(file);
-        if (digest == null) {
-            return "";
-        }
-        StringBuilder sb = new StringBuilder();
-        for (byte b : digest) {
-            sb.append(Integer.toString((b & 255) + 256, 16).substring(1));
-        }
-        return sb.toString();
+        return FileHasher.toHex(md5(file));
     }
 
     /**
      * Unzip a file to destination
      */
     public static void unzip(File zipFile, File destDir) throws IOException {
-        java.util.zip.ZipFile zip = new java.util.zip.ZipFile(zipFile);
-        if (!destDir.exists()) {
-            destDir.mkdirs();
-        }
-        byte[] buffer = new byte[16384];
-        java.util.Enumeration<? extends java.util.zip.ZipEntry> entries = zip.entries();
-        while (entries.hasMoreElements()) {
-            java.util.zip.ZipEntry entry = entries.nextElement();
-            File entryFile = new File(destDir, entry.getName());
-            entryFile.getParentFile().mkdirs();
-            if (!entry.isDirectory()) {
-                java.io.BufferedInputStream inputStream = new java.io.BufferedInputStream(zip.getInputStream(entry));
-                java.io.BufferedOutputStream outputStream = new java.io.BufferedOutputStream(new FileOutputStream(entryFile));
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
-                outputStream.flush();
-                outputStream.close();
-                inputStream.close();
-            }
-        }
-        zip.close();
+        ZipExtractor.extract(zipFile, destDir);
     }
 
     /**
@@ -262,46 +367,20 @@ public class IOUtils {
     /**
      * Download file with progress callback
      */
-    public static boolean downloadFile(String url, File destFile, DownloadProgressCallback progressCallback) {
-        // Create a simple implementation that downloads using HttpURLConnection
-        // Note: This is a simplified version replacing the complex networking implementation
-        try {
-            java.net.URL downloadUrl = new java.net.URL(url);
-            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) downloadUrl.openConnection();
-
-            // Set request properties
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.setRequestProperty("User-Agent", "Twoyi/0.7.5");
-
-            if (connection.getResponseCode() != java.net.HttpURLConnection.HTTP_OK) {
-                return false;
-            }
-
-            long contentLength = connection.getContentLength();
-            java.io.InputStream inputStream = connection.getInputStream();
-            java.io.FileOutputStream fileOutputStream = new java.io.FileOutputStream(destFile);
-
-            byte[] buffer = new byte[8192];
-            long totalBytesRead = 0;
-            int bytesRead;
-
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-
-                if (contentLength > 0 && progressCallback != null) {
-                    int progress = (int) ((totalBytesRead * 100) / contentLength);
-                    progressCallback.onProgress(progress);
+    public static boolean downloadFile(String url, File destFile, final DownloadProgressCallback progressCallback) {
+        Downloader downloader = new Downloader(url, destFile);
+        if (progressCallback != null) {
+            downloader.setProgressCallback(new Downloader.ProgressCallback() {
+                @Override
+                public void onProgress(long downloaded, long total) {
+                    if (total > 0) {
+                        progressCallback.onProgress((int) (downloaded * 100 / total));
+                    }
                 }
-            }
-
-            fileOutputStream.flush();
-            fileOutputStream.close();
-            inputStream.close();
-            connection.disconnect();
-
+            }, 200);
+        }
+        try {
+            downloader.download();
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -310,33 +389,37 @@ public class IOUtils {
     }
 
     /**
-     * Write buffer to file descriptor completely
+     * Write all remaining bytes of the buffer to the descriptor, advancing its position. Partial writes are
+     * continued and EINTR is retried. The descriptor is never closed.
      */
-    public static void writeFully(java.io.FileDescriptor fileDescriptor, java.nio.ByteBuffer byteBuffer) throws IOException {
-        try {
-            java.lang.reflect.Method writeMethod = android.system.Os.class.getDeclaredMethod("write",
-                java.io.FileDescriptor.class, java.nio.ByteBuffer.class);
-            writeMethod.setAccessible(true);
-
-            int remaining = byteBuffer.remaining();
-            while (remaining > 0) {
-                Integer result = (Integer) writeMethod.invoke(null, fileDescriptor, byteBuffer);
-                remaining -= result;
+    public static void writeFully(FileDescriptor fileDescriptor, ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            try {
+                // advances the position by what was written
+                Os.write(fileDescriptor, byteBuffer);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw new IOException(e.getMessage(), e);
+                }
             }
-        } catch (Exception e) {
-            // Fallback using traditional method
-            byte[] bytes = new byte[byteBuffer.remaining()];
-            byteBuffer.get(bytes);
-            java.io.FileOutputStream fos = new java.io.FileOutputStream(fileDescriptor);
-            fos.write(bytes);
-            fos.close();
         }
     }
 
     /**
      * Write bytes to file descriptor completely
      */
-    public static void writeFully(java.io.FileDescriptor fileDescriptor, byte[] bytes, int offset, int length) throws IOException {
-        writeFully(fileDescriptor, java.nio.ByteBuffer.wrap(bytes, offset, length));
+    public static void writeFully(FileDescriptor fileDescriptor, byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            try {
+                int written = Os.write(fileDescriptor, bytes, offset, length);
+                offset += written;
+                length -= written;
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        }
     }
 }
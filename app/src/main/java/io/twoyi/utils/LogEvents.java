@@ -9,15 +9,19 @@ package io.twoyi.utils;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.os.Build;
+import android.util.Log;
 
 import com.microsoft.appcenter.crashes.Crashes;
 import com.microsoft.appcenter.crashes.ingestion.models.ErrorAttachmentLog;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,6 +39,9 @@ public class LogEvents {
 
     private static final RuntimeException BOOT_FAILURE = new RuntimeException("BootFailureException");
 
+    private static final int LOGCAT_CAPACITY = 32 * 1024;
+    private static final int LOGCAT_CHAR_CAPACITY = 4 * 1024 * 1024;
+
     public static void trackError(Throwable e) {
         Crashes.trackError(e);
     }
@@ -111,7 +118,23 @@ public class LogEvents {
             process.waitFor();
         } catch (Throwable ignored) {}
 
+        // the warnings/errors of logcat, filtered by the store from a dump of all levels; the store keeps the
+        // newest entries, the full log is the raw dump above
+        File logcatErrorFile = new File(context.getCacheDir(), "logcat_error.txt");
+        LogStore logs = new LogStore(LOGCAT_CAPACITY, LOGCAT_CHAR_CAPACITY);
+        ProcessBuilder brief = new ProcessBuilder("logcat", "-d", "-v", "brief");
+        try {
+            Process process = brief.start();
+            try (InputStream in = process.getInputStream()) {
+                logs.read(in);
+            }
+            process.waitFor();
+        } catch (Throwable ignored) {}
+
+        exportLogs(logs, new LogStore.Filter().setMinLevel(Log.WARN), logcatErrorFile);
+
         reportItems.add(ReportItem.create(logcatFile));
+        reportItems.add(ReportItem.create(logcatErrorFile));
 
         // tombstones
         File rootfsDir = RomManager.getRootfsDir(context);
@@ -182,4 +205,11 @@ public class LogEvents {
 
         return baos.toByteArray();
     }
+
+    private static void exportLogs(LogStore logs, LogStore.Filter filter, File file) {
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            logs.export(filter, writer);
+        } catch (IOException ignored) {
+        }
+    }
 }
@@ -0,0 +1,445 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, columnar store of logcat entries.
+ *
+ * Lines are parsed once on ingest: the level is kept as a byte, the tag as an interned id, the pid as
+ * an int and the message as an offset into a shared circular char buffer. Entries are addressed by
+ * their absolute sequence index, once the store is full the oldest entries are overwritten.
+ *
+ * There must be a single producer, readers may run concurrently on other threads; an entry which is
+ * overwritten while it is being read is reported as unavailable.
+ */
+public class LogStore {
+
+    public static final int LEVEL_UNKNOWN = 0;
+
+    private static final char[] LEVEL_CHARS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'F', 'S'};
+
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+
+    private final int mMask;
+    private final byte[] mLevels;
+    private final int[] mTags;
+    private final int[] mPids;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+
+    private final char[] mChars;
+    private final int mCharMask;
+
+    // chars up to this position may be overwritten, it is advanced before the chars are written.
+    private final AtomicLong mCharPos = new AtomicLong();
+    private final AtomicLong mWriteIndex = new AtomicLong();
+
+    private final Map<String, Integer> mTagIds = new ConcurrentHashMap<>();
+    private volatile String[] mTagNames = new String[64];
+    private int mTagCount;
+
+    /**
+     * @param capacity     max entries, rounded up to a power of two; the oldest slot is the one being
+     *                     overwritten next, so one less is readable once the store is full.
+     * @param charCapacity max chars of all messages, rounded up to a power of two.
+     */
+    public LogStore(int capacity, int charCapacity) {
+        // at least two slots, one of them is always the next to be overwritten
+        int size = roundUp(Math.max(capacity, 2));
+        mMask = size - 1;
+        mLevels = new byte[size];
+        mTags = new int[size];
+        mPids = new int[size];
+        mOffsets = new long[size];
+        mLengths = new int[size];
+
+        int charSize = roundUp(charCapacity);
+        mChars = new char[charSize];
+        mCharMask = charSize - 1;
+
+        // tag 0 is the empty tag of unparsed lines.
+        internTag("");
+    }
+
+    private static int roundUp(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("capacity: " + value);
+        }
+        int size = Integer.highestOneBit(value);
+        return size < value ? size << 1 : size;
+    }
+
+    public int capacity() {
+        return mLevels.length;
+    }
+
+    public static int parseLevel(char c) {
+        switch (c) {
+            case 'V':
+                return Log.VERBOSE;
+            case 'D':
+                return Log.DEBUG;
+            case 'I':
+                return Log.INFO;
+            case 'W':
+                return Log.WARN;
+            case 'E':
+                return Log.ERROR;
+            case 'F':
+            case 'A':
+                return Log.ASSERT;
+            case 'S':
+                return Log.ASSERT + 1;
+            default:
+                return LEVEL_UNKNOWN;
+        }
+    }
+
+    public static char levelChar(int level) {
+        if (level <= LEVEL_UNKNOWN || level >= LEVEL_CHARS.length) {
+            return '?';
+        }
+        return LEVEL_CHARS[level];
+    }
+
+    /**
+     * Parse and append a line in `logcat -v brief` format, e.g. "I/ActivityManager(  567): message".
+     * Lines which are not in this format are kept as messages with an unknown level.
+     */
+    public void add(String line) {
+        if (line == null || line.isEmpty()) {
+            return;
+        }
+
+        int level = line.length() > 2 && line.charAt(1) == '/' ? parseLevel(line.charAt(0)) : LEVEL_UNKNOWN;
+        if (level != LEVEL_UNKNOWN) {
+            int close = line.indexOf("):", 2);
+            int open = close < 0 ? -1 : line.lastIndexOf('(', close);
+            if (open > 1) {
+                int pid = parsePid(line, open + 1, close);
+                if (pid >= 0) {
+                    int tag = internTag(line.substring(2, open).trim());
+                    int from = Math.min(close + 3, line.length());
+                    append(level, tag, pid, line, from, line.length());
+                    return;
+                }
+            }
+        }
+        append(LEVEL_UNKNOWN, 0, -1, line, 0, line.length());
+    }
+
+    /**
+     * Append an already decoded entry.
+     */
+    public void add(int level, String tag, int pid, String message) {
+        append(level, internTag(tag == null ? "" : tag), pid, message, 0, message.length());
+    }
+
+    private static int parsePid(String line, int from, int to) {
+        int pid = 0;
+        boolean found = false;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                pid = pid * 10 + (c - '0');
+                found = true;
+            } else if (c != ' ') {
+                return -1;
+            }
+        }
+        return found ? pid : -1;
+    }
+
+    private int internTag(String tag) {
+        Integer id = mTagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+
+        String[] names = mTagNames;
+        if (mTagCount == names.length) {
+            String[] grown = new String[names.length * 2];
+            System.arraycopy(names, 0, grown, 0, names.length);
+            names = grown;
+        }
+        int newId = mTagCount++;
+        names[newId] = tag;
+        mTagNames = names;
+        mTagIds.put(tag, newId);
+        return newId;
+    }
+
+    private void append(int level, int tag, int pid, String src, int from, int to) {
+        int length = Math.min(to - from, Math.min(MAX_MESSAGE_LENGTH, mChars.length));
+        long offset = mCharPos.get();
+        mCharPos.set(offset + length);
+
+        int start = (int) (offset & mCharMask);
+        int first = Math.min(length, mChars.length - start);
+        src.getChars(from, from + first, mChars, start);
+        if (first < length) {
+            // wrap around
+            src.getChars(from + first, from + length, mChars, 0);
+        }
+
+        long index = mWriteIndex.get();
+        int slot = (int) (index & mMask);
+        mLevels[slot] = (byte) level;
+        mTags[slot] = tag;
+        mPids[slot] = pid;
+        mOffsets[slot] = offset;
+        mLengths[slot] = length;
+        mWriteIndex.lazySet(index + 1);
+    }
+
+    /**
+     * @return the index one past the newest entry.
+     */
+    public long writeIndex() {
+        return mWriteIndex.get();
+    }
+
+    /**
+     * @return the oldest index which is still readable for a snapshot ending at writeIndex. The slot of
+     * writeIndex - capacity is the one the producer fills next, so it doesn't count.
+     */
+    public long firstIndex(long writeIndex) {
+        return Math.max(0, writeIndex - mLevels.length + 1);
+    }
+
+    private boolean isReadable(long index) {
+        long writeIndex = mWriteIndex.get();
+        return index >= 0 && index < writeIndex && writeIndex - index < mLevels.length;
+    }
+
+    private boolean isIntact(long index, int slot) {
+        // the write index is published after the slot is filled, the chars position before they are written
+        return mWriteIndex.get() - index < mLevels.length
+                && mCharPos.get() - mOffsets[slot] <= mChars.length;
+    }
+
+    /**
+     * @return the level of the entry, or {@link #LEVEL_UNKNOWN} if it is unavailable.
+     */
+    public int level(long index) {
+        if (!isReadable(index)) {
+            return LEVEL_UNKNOWN;
+        }
+        return mLevels[(int) (index & mMask)];
+    }
+
+    public int pid(long index) {
+        if (!isReadable(index)) {
+            return -1;
+        }
+        return mPids[(int) (index & mMask)];
+    }
+
+    public String tag(long index) {
+        if (!isReadable(index)) {
+            return null;
+        }
+        return mTagNames[mTags[(int) (index & mMask)]];
+    }
+
+    /**
+     * @return the id of an interned tag, or -1 if no entry has used it yet.
+     */
+    public int tagId(String tag) {
+        Integer id = mTagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Format an entry in `logcat -v brief` format without allocating.
+     *
+     * @return the number of chars written to dst, or -1 if the entry is unavailable.
+     */
+    public int format(long index, char[] dst) {
+        if (!isReadable(index)) {
+            return -1;
+        }
+        int slot = (int) (index & mMask);
+        int level = mLevels[slot];
+
+        int n = 0;
+        if (level != LEVEL_UNKNOWN) {
+            n = put(dst, n, levelChar(level));
+            n = put(dst, n, '/');
+            String tag = mTagNames[mTags[slot]];
+            int tagLength = Math.min(tag.length(), dst.length - n);
+            tag.getChars(0, tagLength, dst, n);
+            n += tagLength;
+            n = put(dst, n, '(');
+            n = putPid(dst, n, mPids[slot]);
+            n = put(dst, n, ')');
+            n = put(dst, n, ':');
+            n = put(dst, n, ' ');
+        }
+
+        long offset = mOffsets[slot];
+        int length = Math.min(mLengths[slot], dst.length - n);
+        for (int i = 0; i < length; i++) {
+            dst[n++] = mChars[(int) ((offset + i) & mCharMask)];
+        }
+
+        return isIntact(index, slot) ? n : -1;
+    }
+
+    private static int put(char[] dst, int n, char c) {
+        if (n < dst.length) {
+            dst[n++] = c;
+        }
+        return n;
+    }
+
+    private static int putPid(char[] dst, int n, int pid) {
+        int digits = 1;
+        for (int v = pid; v >= 10; v /= 10) {
+            digits++;
+        }
+        // brief format pads the pid to 5 columns
+        for (int i = digits; i < 5; i++) {
+            n = put(dst, n, ' ');
+        }
+        if (n + digits > dst.length) {
+            return n;
+        }
+        for (int i = n + digits - 1, v = pid; i >= n; i--, v /= 10) {
+            dst[i] = (char) ('0' + v % 10);
+        }
+        return n + digits;
+    }
+
+    /**
+     * @return whether the entry is available and accepted by the filter.
+     */
+    public boolean matches(long index, Filter filter) {
+        if (!isReadable(index)) {
+            return false;
+        }
+        int slot = (int) (index & mMask);
+        if (mLevels[slot] < filter.minLevel) {
+            return false;
+        }
+        if (filter.tags != null && !filter.tags.get(mTags[slot])) {
+            return false;
+        }
+        if (filter.query != null && !containsQuery(slot, filter.query)) {
+            return false;
+        }
+        return isIntact(index, slot);
+    }
+
+    private boolean containsQuery(int slot, char[] query) {
+        long offset = mOffsets[slot];
+        int length = mLengths[slot];
+        int last = length - query.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < query.length && mChars[(int) ((offset + i + j) & mCharMask)] == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the first index in [from, to) accepted by the filter, or -1 if there is none.
+     */
+    public long next(long from, long to, Filter filter) {
+        for (long i = Math.max(from, firstIndex(writeIndex())); i < to; i++) {
+            if (matches(i, filter)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write all entries accepted by the filter in `logcat -v brief` format.
+     *
+     * @return the number of entries written.
+     */
+    public int export(Filter filter, Writer writer) throws IOException {
+        char[] buffer = new char[MAX_MESSAGE_LENGTH + 128];
+        long end = writeIndex();
+        int count = 0;
+        for (long i = next(0, end, filter); i >= 0; i = next(i + 1, end, filter)) {
+            int n = format(i, buffer);
+            if (n < 0) {
+                continue;
+            }
+            writer.write(buffer, 0, n);
+            writer.write('\n');
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read `logcat -v brief` output until the end of stream.
+     */
+    public void read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            add(line);
+        }
+    }
+
+    public static class Filter {
+
+        private int minLevel = LEVEL_UNKNOWN;
+        private BitSet tags;
+        private char[] query;
+
+        public Filter setMinLevel(int level) {
+            minLevel = level;
+            return this;
+        }
+
+        /**
+         * Only accept the given tags, can be called multiple times. Tags are resolved against the
+         * entries already in the store.
+         */
+        public Filter addTag(LogStore store, String tag) {
+            if (tags == null) {
+                tags = new BitSet();
+            }
+            int id = store.tagId(tag);
+            if (id >= 0) {
+                tags.set(id);
+            }
+            return this;
+        }
+
+        /**
+         * Only accept entries whose message contains the query, case sensitive.
+         */
+        public Filter setQuery(String query) {
+            this.query = query == null || query.isEmpty() ? null : query.toCharArray();
+            return this;
+        }
+    }
+}
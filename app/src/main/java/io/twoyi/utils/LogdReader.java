@@ -0,0 +1,204 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads log entries of the guest system directly from its logd reader socket, without a logcat process.
+ */
+public class LogdReader implements Closeable {
+
+    private static final String TAG = "LogdReader";
+
+    private static final String LOGDR_SOCKET = "dev/socket/logdr";
+
+    // main, system and crash buffers, the events buffer is binary.
+    private static final String STREAM_COMMAND = "stream lids=0,3,4";
+
+    // struct logger_entry, all fields are little endian.
+    private static final int LOGGER_ENTRY_V1_HEADER_SIZE = 20;
+    private static final int LOGGER_ENTRY_MAX_LEN = 5 * 1024;
+
+    private final LocalSocket mSocket;
+    private volatile boolean mClosed;
+
+    private LogdReader(LocalSocket socket) {
+        mSocket = socket;
+    }
+
+    public static File getSocketFile(Context context) {
+        return new File(RomManager.getRootfsDir(context), LOGDR_SOCKET);
+    }
+
+    public static LogdReader open(Context context) throws IOException {
+        File socketFile = getSocketFile(context);
+        if (!socketFile.exists()) {
+            throw new FileNotFoundException(socketFile.getAbsolutePath());
+        }
+
+        LocalSocket socket = new LocalSocket(LocalSocket.SOCKET_SEQPACKET);
+        try {
+            socket.connect(new LocalSocketAddress(socketFile.getAbsolutePath(), LocalSocketAddress.Namespace.FILESYSTEM));
+            socket.getOutputStream().write(STREAM_COMMAND.getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            IOUtils.closeSilently(socket);
+            throw e;
+        }
+        return new LogdReader(socket);
+    }
+
+    /**
+     * Decode entries into the store until the timeout, {@link #close()} or the end of stream.
+     *
+     * @param minLevel            entries below this level are dropped, like the `*:I` filter spec of logcat.
+     * @param firstEntryTimeoutMs stop early if no entry is added within this time, logd may accept the
+     *                            connection and still never stream anything.
+     * @param onEntries           called after every entry which is added to the store.
+     * @return the number of entries added to the store.
+     */
+    public int readTo(LogStore store, int minLevel, long firstEntryTimeoutMs, long timeoutMs, Runnable onEntries) {
+        long startTime = SystemClock.uptimeMillis();
+        long startCpuTime = SystemClock.currentThreadTimeMillis();
+        long firstEntryTime = -1;
+        int count = 0;
+
+        byte[] packet = new byte[LOGGER_ENTRY_MAX_LEN + 64];
+        try {
+            InputStream in = mSocket.getInputStream();
+            long remaining;
+            while (!mClosed && (remaining = (count == 0 ? Math.min(firstEntryTimeoutMs, timeoutMs) : timeoutMs)
+                    - (SystemClock.uptimeMillis() - startTime)) > 0) {
+                // an idle socket would block the read forever, so it waits at most until the timeout.
+                int readTimeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+                mSocket.setSoTimeout(readTimeout);
+                long readStart = SystemClock.uptimeMillis();
+                // seqpacket: every read returns exactly one entry.
+                int read;
+                try {
+                    read = in.read(packet);
+                } catch (IOException e) {
+                    // EAGAIN after the receive timeout, the end of the read
+                    if (!mClosed && SystemClock.uptimeMillis() - readStart >= readTimeout - 1) {
+                        break;
+                    }
+                    throw e;
+                }
+                if (read <= 0) {
+                    break;
+                }
+                int added = decode(packet, read, store, minLevel);
+                if (added == 0) {
+                    continue;
+                }
+                if (firstEntryTime < 0) {
+                    firstEntryTime = SystemClock.uptimeMillis() - startTime;
+                }
+                count += added;
+                onEntries.run();
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "read logd error", e);
+            }
+        }
+
+        Log.i(TAG, "read " + count + " entries in " + (SystemClock.uptimeMillis() - startTime) + " ms, first entry after "
+                + firstEntryTime + " ms, cpu time: " + (SystemClock.currentThreadTimeMillis() - startCpuTime) + " ms");
+        return count;
+    }
+
+    private static int decode(byte[] packet, int length, LogStore store, int minLevel) {
+        if (length < LOGGER_ENTRY_V1_HEADER_SIZE) {
+            return 0;
+        }
+        int payloadLength = readU16(packet, 0);
+        int headerSize = readU16(packet, 2);
+        if (headerSize == 0) {
+            headerSize = LOGGER_ENTRY_V1_HEADER_SIZE;
+        }
+        int pid = readS32(packet, 4);
+
+        int start = headerSize;
+        int end = Math.min(length, headerSize + payloadLength);
+        if (start >= end) {
+            return 0;
+        }
+
+        // payload: prio, tag\0, message\0
+        int level = packet[start];
+        if (level < minLevel) {
+            return 0;
+        }
+        int tagEnd = indexOf(packet, start + 1, end, (byte) 0);
+        if (tagEnd < 0) {
+            return 0;
+        }
+        String tag = new String(packet, start + 1, tagEnd - start - 1, StandardCharsets.UTF_8);
+
+        int messageEnd = indexOf(packet, tagEnd + 1, end, (byte) 0);
+        if (messageEnd < 0) {
+            messageEnd = end;
+        }
+
+        // one line per entry like logcat does.
+        int count = 0;
+        int lineStart = tagEnd + 1;
+        while (lineStart < messageEnd) {
+            int lineEnd = indexOf(packet, lineStart, messageEnd, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = messageEnd;
+            }
+            store.add(level, tag, pid, new String(packet, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+            count++;
+            lineStart = lineEnd + 1;
+        }
+        return count;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readU16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readS32(byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+                | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        try {
+            // wake up the blocking read
+            mSocket.shutdownInput();
+        } catch (IOException ignored) {
+        }
+        IOUtils.closeSilently(mSocket);
+    }
+}
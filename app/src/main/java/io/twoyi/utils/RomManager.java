@@ -291,10 +291,35 @@ public final class RomManager {
         if (!rootfs3rd.exists()) {
             return false;
         }
+        if (!verify3rdRootfs(context, rootfs3rd)) {
+            return false;
+        }
         int err = extractRootfs(context, rootfs3rd);
         return err == 0;
     }
 
+    /**
+     * Check that the rom is still the one which was imported. The hash was cached on import, so for an unchanged
+     * file this is a stat instead of reading it again.
+     */
+    private static boolean verify3rdRootfs(Context context, File rootfs3rd) {
+        String expected = AppKV.getStringConfig(context, AppKV.THIRD_PARTY_ROM_SHA256, null);
+        if (expected == null) {
+            // imported by a version which didn't record it
+            return true;
+        }
+        try {
+            String actual = FileHasher.get(context).hashHex(rootfs3rd, FileHasher.Algorithm.SHA256);
+            if (expected.equalsIgnoreCase(actual)) {
+                return true;
+            }
+            Log.e(TAG, "3rd rom changed since it was imported, expected: " + expected + ", actual: " + actual);
+        } catch (IOException e) {
+            Log.e(TAG, "hash 3rd rom failed", e);
+        }
+        return false;
+    }
+
     public static int extractRootfs(Context context, File rootfs7z) {
 
         int cpu = Runtime.getRuntime().availableProcessors();
@@ -356,7 +381,8 @@ public final class RomManager {
         File rootfsDir = getRootfsDir(context);
         File systemDir = new File(rootfsDir, partition);
 
-        IOUtils.deleteDirectory(systemDir);
+        // renamed away at once, the extraction doesn't wait for the old files to be deleted
+        Trash.get(context).delete(systemDir);
     }
 
     private static void removeSystemPartition(Context context) {
@@ -0,0 +1,234 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes large trees without making the caller wait: a tree is renamed into the trash directory, which is one
+ * atomic rename on the same file system, and deleted there on a background pool.
+ *
+ * What is left in the trash when the process dies is deleted on the next start, by {@link #get(Context)}.
+ */
+public final class Trash {
+
+    private static final String TAG = "Trash";
+
+    private static final String TRASH_DIR = "trash";
+
+    // the workers deleting one tree, each takes the next top level child of it.
+    private static final int PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static volatile Trash sInstance;
+
+    private final File mDir;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    private final AtomicInteger mPendingEntries = new AtomicInteger();
+    private final AtomicLong mDeletedEntries = new AtomicLong();
+    private final AtomicLong mDeletedBytes = new AtomicLong();
+    private final AtomicLong mDeleteNanos = new AtomicLong();
+
+    private Trash(File dir) {
+        mDir = dir;
+        mExecutor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "trash-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The trash of the app, the first call schedules what an earlier process left in it.
+     */
+    public static Trash get(Context context) {
+        Trash trash = sInstance;
+        if (trash != null) {
+            return trash;
+        }
+        synchronized (Trash.class) {
+            if (sInstance == null) {
+                trash = new Trash(new File(context.getDataDir(), TRASH_DIR));
+                trash.resume();
+                sInstance = trash;
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Move the file or tree into the trash and delete it in the background. If it can't be moved, e.g. because it
+     * is on another file system, it is deleted right away.
+     *
+     * @return false if there was nothing to delete, or deleting it right away failed.
+     */
+    public boolean delete(File file) {
+        if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.mkdirs();
+        File entry = new File(mDir, System.currentTimeMillis() + "-" + mSequence.incrementAndGet() + "-"
+                + file.getName());
+        try {
+            Files.move(file.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "can't move " + file + " to the trash, delete it now", e);
+            return IOUtils.deleteTree(file, mDeletedBytes);
+        }
+        schedule(entry);
+        return true;
+    }
+
+    private void resume() {
+        File[] entries = mDir.listFiles();
+        if (entries == null || entries.length == 0) {
+            return;
+        }
+        Log.i(TAG, "resume deleting " + entries.length + " entries");
+        for (File entry : entries) {
+            schedule(entry);
+        }
+    }
+
+    private void schedule(final File entry) {
+        mPendingEntries.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteEntry(entry);
+            }
+        });
+    }
+
+    /**
+     * The workers share one stream of the top level children, so the memory stays bounded however large the
+     * directories are. The last worker to finish deletes what's left and the entry itself.
+     */
+    private void deleteEntry(final File entry) {
+        final long start = System.nanoTime();
+        final AtomicLong bytes = new AtomicLong();
+        final DirectoryStream<Path> children;
+        try {
+            children = Files.isDirectory(entry.toPath(), LinkOption.NOFOLLOW_LINKS)
+                    ? Files.newDirectoryStream(entry.toPath()) : null;
+        } catch (IOException e) {
+            finishEntry(entry, bytes, start);
+            return;
+        }
+        if (children == null) {
+            finishEntry(entry, bytes, start);
+            return;
+        }
+
+        final Iterator<Path> iterator = children.iterator();
+        final AtomicInteger workers = new AtomicInteger(PARALLELISM);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Path child;
+                    while ((child = next(iterator)) != null) {
+                        IOUtils.deleteTree(child.toFile(), bytes);
+                    }
+                } finally {
+                    if (workers.decrementAndGet() == 0) {
+                        IOUtils.closeSilently(children);
+                        finishEntry(entry, bytes, start);
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < PARALLELISM; i++) {
+            mExecutor.execute(worker);
+        }
+        worker.run();
+    }
+
+    private static Path next(Iterator<Path> iterator) {
+        synchronized (iterator) {
+            try {
+                return iterator.hasNext() ? iterator.next() : null;
+            } catch (DirectoryIteratorException e) {
+                // the rest is deleted with the entry
+                return null;
+            }
+        }
+    }
+
+    private void finishEntry(File entry, AtomicLong bytes, long start) {
+        boolean success = IOUtils.deleteTree(entry, bytes);
+        long nanos = System.nanoTime() - start;
+        mPendingEntries.decrementAndGet();
+        mDeletedEntries.incrementAndGet();
+        mDeletedBytes.addAndGet(bytes.get());
+        mDeleteNanos.addAndGet(nanos);
+        Log.i(TAG, "deleted " + entry.getName() + ": " + bytes.get() + " bytes in "
+                + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms" + (success ? "" : ", some files are left"));
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.pendingEntries = mPendingEntries.get();
+        stats.deletedEntries = mDeletedEntries.get();
+        stats.deletedBytes = mDeletedBytes.get();
+        stats.deleteNanos = mDeleteNanos.get();
+        return stats;
+    }
+
+    public static class Stats {
+        // trees moved into the trash and not yet deleted.
+        public int pendingEntries;
+        public long deletedEntries;
+        // the size of the deleted files, also of those deleted right away.
+        public long deletedBytes;
+        // the time the background deletes took, summed over the trees.
+        public long deleteNanos;
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "pendingEntries=" + pendingEntries +
+                    ", deletedEntries=" + deletedEntries +
+                    ", deletedBytes=" + deletedBytes +
+                    ", deleteNanos=" + deleteNanos +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a directory tree: the source is walked once on the calling thread, which creates every directory before
+ * its children and recreates symlinks, while the files are copied on a work-stealing pool.
+ *
+ * The bytes of the files being copied at the same time are bounded, so a tree of huge images doesn't open all of
+ * them at once and the walk doesn't run far ahead of the copies.
+ */
+public final class TreeCopier {
+
+    public static final int DEFAULT_PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256 * 1024 * 1024;
+
+    // smaller files are copied with Files.copy, larger ones with IOUtils.copyFile which keeps their holes.
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+
+    // the in-flight budget is counted in KiB so that it fits the permits of a semaphore.
+    private static final int PERMIT_SIZE = 1024;
+
+    private TreeCopier() {
+    }
+
+    /**
+     * The result of a copy.
+     */
+    public static final class Result {
+        public int files;
+        public int directories;
+        public int symlinks;
+        public long bytes;
+        public long elapsedNanos;
+
+        public long bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (long) (bytes * 1e9 / elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "files=" + files +
+                    ", directories=" + directories +
+                    ", symlinks=" + symlinks +
+                    ", bytes=" + bytes +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", bytesPerSecond=" + bytesPerSecond() +
+                    '}';
+        }
+    }
+
+    public static Result copy(File source, File target) throws IOException {
+        return copy(source, target, DEFAULT_PARALLELISM, DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    /**
+     * Copy the tree at source into target, replacing existing files. Symlinks are copied as links.
+     *
+     * @param parallelism        the number of files copied at the same time.
+     * @param maxInFlightBytes   the bound of the total size of the files being copied, a larger file is
+     *                           copied alone.
+     * @throws IOException the first failure, the copy stops at it but the files already copied are kept.
+     */
+    public static Result copy(File source, File target, int parallelism, long maxInFlightBytes)
+            throws IOException {
+        long start = System.nanoTime();
+        final Path sourceRoot = source.toPath();
+        final Path targetRoot = target.toPath();
+        final int maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / PERMIT_SIZE));
+        final Semaphore inFlight = new Semaphore(maxPermits);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Result result = new Result();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(targetRoot.resolve(sourceRoot.relativize(dir)));
+                    result.directories++;
+                    return failure.get() == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+                    final Path targetFile = targetRoot.resolve(sourceRoot.relativize(file));
+                    if (attrs.isSymbolicLink()) {
+                        Files.deleteIfExists(targetFile);
+                        Files.createSymbolicLink(targetFile, Files.readSymbolicLink(file));
+                        result.symlinks++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (!attrs.isRegularFile()) {
+                        // sockets, fifos and devices can't be copied
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    final long size = attrs.size();
+                    final int permits = (int) Math.max(1, Math.min(maxPermits, size / PERMIT_SIZE));
+                    try {
+                        inFlight.acquire(permits);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("copy of " + file + " interrupted");
+                    }
+                    if (failure.get() != null) {
+                        inFlight.release(permits);
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    tasks.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (size < SMALL_FILE_SIZE) {
+                                    // holes don't matter here, one call of the platform copy is the cheapest
+                                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                                } else {
+                                    // replace rather than truncate: the old blocks are freed in one go, and
+                                    // a link which is in the way isn't written through
+                                    Files.deleteIfExists(targetFile);
+                                    IOUtils.copyFile(file.toFile(), targetFile.toFile());
+                                }
+                                files.incrementAndGet();
+                                bytes.addAndGet(size);
+                            } catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                inFlight.release(permits);
+                            }
+                        }
+                    }));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            pool.shutdown();
+        }
+
+        IOException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+        result.files = files.get();
+        result.bytes = bytes.get();
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+}
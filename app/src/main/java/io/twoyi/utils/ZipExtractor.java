@@ -0,0 +1,246 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a zip: the central directory is read once, the directories are created up front, and the files are
+ * inflated on a small pool, the largest first.
+ *
+ * An archive with an entry which would land outside the target is rejected before anything is written. A file which
+ * already exists with the size, mtime and CRC of its entry is left alone, so extracting the same archive again only
+ * reads.
+ */
+public final class ZipExtractor {
+
+    public static final int DEFAULT_PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ZipExtractor() {
+    }
+
+    /**
+     * Progress of an extraction, called on the pool threads when an entry is done.
+     */
+    public interface ProgressCallback {
+        /**
+         * @param skipped true if the existing file was identical and kept.
+         */
+        void onEntry(String name, long size, boolean skipped);
+    }
+
+    /**
+     * The result of an extraction.
+     */
+    public static final class Result {
+        public int extracted;
+        public int skipped;
+        // uncompressed bytes written.
+        public long bytes;
+        public long elapsedNanos;
+
+        public long bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (long) (bytes * 1e9 / elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "extracted=" + extracted +
+                    ", skipped=" + skipped +
+                    ", bytes=" + bytes +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", bytesPerSecond=" + bytesPerSecond() +
+                    '}';
+        }
+    }
+
+    public static Result extract(File zipFile, File destDir) throws IOException {
+        return extract(zipFile, destDir, DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * @param callback may be null.
+     * @throws ZipException if an entry escapes the target or doesn't match its CRC.
+     */
+    public static Result extract(File zipFile, File destDir, int parallelism, final ProgressCallback callback)
+            throws IOException {
+        long start = System.nanoTime();
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            Path root = destDir.getCanonicalFile().toPath();
+            Files.createDirectories(root);
+
+            List<ZipEntry> files = new ArrayList<>();
+            // the parent of every file, most of them are the same few
+            Set<File> dirs = new LinkedHashSet<>();
+            List<File> targets = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Path target = root.resolve(entry.getName()).normalize();
+                if (!target.startsWith(root) || target.equals(root) && !entry.isDirectory()) {
+                    throw new ZipException("entry escapes the target: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    dirs.add(target.toFile());
+                } else {
+                    files.add(entry);
+                    dirs.add(target.getParent().toFile());
+                }
+            }
+
+            for (File dir : dirs) {
+                if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                    throw new IOException("create dir: " + dir + " failed");
+                }
+            }
+
+            // the largest first, so a big image doesn't start last and keep one thread busy alone
+            Collections.sort(files, new Comparator<ZipEntry>() {
+                @Override
+                public int compare(ZipEntry a, ZipEntry b) {
+                    return Long.compare(b.getSize(), a.getSize());
+                }
+            });
+            for (ZipEntry entry : files) {
+                targets.add(root.resolve(entry.getName()).normalize().toFile());
+            }
+
+            final AtomicReference<IOException> failure = new AtomicReference<>();
+            final AtomicInteger extracted = new AtomicInteger();
+            final AtomicInteger skipped = new AtomicInteger();
+            final AtomicLong bytes = new AtomicLong();
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    final ZipEntry entry = files.get(i);
+                    final File target = targets.get(i);
+                    tasks.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                boolean skip = isUpToDate(entry, target);
+                                if (skip) {
+                                    skipped.incrementAndGet();
+                                } else {
+                                    extractEntry(zip, entry, target);
+                                    extracted.incrementAndGet();
+                                    bytes.addAndGet(entry.getSize());
+                                }
+                                if (callback != null) {
+                                    callback.onEntry(entry.getName(), entry.getSize(), skip);
+                                }
+                            } catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    }));
+                }
+            } finally {
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+                pool.shutdown();
+            }
+
+            IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+            Result result = new Result();
+            result.extracted = extracted.get();
+            result.skipped = skipped.get();
+            result.bytes = bytes.get();
+            result.elapsedNanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            IOUtils.closeSilently(zip);
+        }
+    }
+
+    private static boolean isUpToDate(ZipEntry entry, File target) throws IOException {
+        // the mtime is set from the entry on extraction, a file written by someone else won't match it
+        if (entry.getTime() == -1 || entry.getCrc() == -1
+                || !Files.isRegularFile(target.toPath(), LinkOption.NOFOLLOW_LINKS)
+                || target.length() != entry.getSize() || target.lastModified() != entry.getTime()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(target);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+        return crc.getValue() == entry.getCrc();
+    }
+
+    private static void extractEntry(ZipFile zip, ZipEntry entry, File target) throws IOException {
+        if (Files.isSymbolicLink(target.toPath())) {
+            // don't write through a link which is in the way
+            Files.delete(target.toPath());
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = zip.getInputStream(entry);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(target);
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeSilently(in);
+            IOUtils.closeSilently(out);
+        }
+        if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+            throw new ZipException("crc mismatch: " + entry.getName());
+        }
+        if (entry.getTime() != -1) {
+            //noinspection ResultOfMethodCallIgnored
+            target.setLastModified(entry.getTime());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.ACache;
+
+/**
+ * put, get and put with eviction of both disk stores at several value sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ACacheBenchmark {
+
+    private static final int KEYS = 256;
+
+    @Param({"64", "4096", "262144"})
+    public int valueSize;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    private File mDir;
+    private ACache mCache;
+    private ACache mEvictingCache;
+    private String[] mKeys;
+    private byte[] mValue;
+    private int mNext;
+    private int mNextNew;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("acache");
+        mCache = open(new File(mDir, "cache"), Integer.MAX_VALUE);
+        // holds half the keys, every put of a key it doesn't have evicts one.
+        mEvictingCache = open(new File(mDir, "evicting"), KEYS / 2);
+
+        mValue = BenchmarkFiles.data(valueSize, 0.5);
+        mKeys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            mKeys[i] = "key" + i;
+            mCache.put(mKeys[i], mValue);
+            mEvictingCache.put(mKeys[i], mValue);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.flush();
+        mEvictingCache.flush();
+        BenchmarkFiles.delete(mDir);
+    }
+
+    private ACache open(File dir, int maxCount) {
+        long maxSize = 1024L * 1024 * 1024;
+        return "segment".equals(store) ? ACache.getLogStructured(dir, maxSize, maxCount)
+                : ACache.get(dir, maxSize, maxCount);
+    }
+
+    private String nextKey() {
+        mNext = (mNext + 1) % KEYS;
+        return mKeys[mNext];
+    }
+
+    @Benchmark
+    public void put() {
+        mCache.put(nextKey(), mValue);
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return mCache.getAsBinary(nextKey());
+    }
+
+    @Benchmark
+    public void putEvicting() {
+        // walks all keys in order, so the key put is always the one evicted longest ago.
+        mNextNew = (mNextNew + 1) % KEYS;
+        mEvictingCache.put(mKeys[mNextNew], mValue);
+    }
+}
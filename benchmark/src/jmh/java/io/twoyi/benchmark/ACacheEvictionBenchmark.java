@@ -0,0 +1,74 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.ACache;
+
+/**
+ * put into a full file store of the given number of entries, every put of a new key evicts the least recently
+ * used one. With the old linear scan for the eldest file this grew with the entry count, with the LRU index it
+ * should only be the cost of writing one file and deleting another.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ACacheEvictionBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private File mDir;
+    private ACache mCache;
+    private byte[] mValue;
+    private long mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("acache-evict");
+        mCache = ACache.get(mDir, Long.MAX_VALUE, entries);
+        mValue = BenchmarkFiles.data(16, 0);
+        for (int i = 0; i < entries; i++) {
+            mCache.put(key(mNext++), mValue);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.flush();
+        BenchmarkFiles.delete(mDir);
+    }
+
+    private static String key(long i) {
+        return "key" + i;
+    }
+
+    @Benchmark
+    public void putEvicting() {
+        mCache.put(key(mNext++), mValue);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.ACache;
+
+/**
+ * Opening a populated cache directory. Without its saved index the file store scans its directory and the segment
+ * store replays its segments; with it the file store maps its .index snapshot and only lists the directory, the
+ * segment store loads its checkpoint and replays what was written after it. The time is until the index is
+ * complete, the close which waits for the background scan is part of it.
+ * The files stay in the page cache between invocations, so this is a warm open.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ACacheOpenBenchmark {
+
+    // the names the stores save their index under.
+    private static final String[] INDEX_FILES = {".index", "index.ckpt"};
+
+    @Param({"10000", "50000"})
+    public int entries;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    // whether the index saved when the cache was closed is kept.
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("acache-open");
+        ACache cache = openCache();
+        byte[] value = BenchmarkFiles.data(256, 0.5);
+        for (int i = 0; i < entries; i++) {
+            cache.put("key" + i, value);
+        }
+        cache.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void dropIndex() {
+        if (snapshot) {
+            return;
+        }
+        for (String name : INDEX_FILES) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDir, name).delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(mDir);
+    }
+
+    private ACache openCache() {
+        long maxSize = 1024L * 1024 * 1024;
+        return "segment".equals(store) ? ACache.getLogStructured(mDir, maxSize, Integer.MAX_VALUE)
+                : ACache.get(mDir, maxSize, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void open() {
+        openCache().close();
+    }
+}
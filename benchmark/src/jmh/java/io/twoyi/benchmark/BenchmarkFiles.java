@@ -0,0 +1,58 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import io.twoyi.utils.IOUtils;
+
+/**
+ * Inputs of the benchmarks. The data comes from a fixed seed, so every run and every commit sees the same bytes.
+ */
+final class BenchmarkFiles {
+
+    private static final long SEED = 0x74776f79L;
+
+    private BenchmarkFiles() {
+    }
+
+    static File newTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File dir) {
+        IOUtils.deleteDir(dir);
+    }
+
+    /**
+     * @param compressibility the fraction of the bytes which repeat a short pattern, the rest is random.
+     */
+    static byte[] data(int size, double compressibility) {
+        Random random = new Random(SEED + size);
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        int repeated = (int) (size * compressibility);
+        for (int i = 0; i < repeated; i++) {
+            data[i] = (byte) ('a' + i % 16);
+        }
+        return data;
+    }
+
+    static File write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.IOUtils;
+
+/**
+ * IOUtils.copyFile against the 1KB heap buffer loop it used to be, divide the file size by the score for the
+ * throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CopyFileBenchmark {
+
+    @Param({"65536", "16777216", "268435456"})
+    public int fileSize;
+
+    private File mDir;
+    private File mSource;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("copy");
+        mSource = BenchmarkFiles.write(new File(mDir, "source"), BenchmarkFiles.data(fileSize, 0.5));
+        mTarget = new File(mDir, "target");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(mDir);
+    }
+
+    @Benchmark
+    public File copyFile() throws IOException {
+        IOUtils.copyFile(mSource, mTarget);
+        return mTarget;
+    }
+
+    @Benchmark
+    public File heapBufferLoop() throws IOException {
+        FileInputStream inputStream = new FileInputStream(mSource);
+        FileOutputStream outputStream = new FileOutputStream(mTarget);
+        try {
+            FileChannel iChannel = inputStream.getChannel();
+            FileChannel oChannel = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (iChannel.read(buffer) != -1) {
+                buffer.flip();
+                oChannel.write(buffer);
+                buffer.clear();
+            }
+        } finally {
+            inputStream.close();
+            outputStream.close();
+        }
+        return mTarget;
+    }
+}
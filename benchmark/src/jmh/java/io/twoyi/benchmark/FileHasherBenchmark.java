@@ -0,0 +1,80 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.ACache;
+import io.twoyi.utils.FileHasher;
+
+/**
+ * The algorithms of FileHasher on a file of rom size, and the cost of checking it again when it didn't change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FileHasherBenchmark {
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private File mDir;
+    private File mFile;
+    private FileHasher mHasher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("hash");
+        mFile = BenchmarkFiles.write(new File(mDir, "rootfs.7z"), BenchmarkFiles.data(fileSize, 0));
+        mHasher = new FileHasher(ACache.get(new File(mDir, "cache")));
+        mHasher.hash(mFile, FileHasher.Algorithm.MD5);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(mDir);
+    }
+
+    @Benchmark
+    public byte[] md5() throws IOException {
+        return FileHasher.compute(mFile, FileHasher.Algorithm.MD5);
+    }
+
+    @Benchmark
+    public byte[] sha256() throws IOException {
+        return FileHasher.compute(mFile, FileHasher.Algorithm.SHA256);
+    }
+
+    @Benchmark
+    public byte[] xxh64() throws IOException {
+        return FileHasher.compute(mFile, FileHasher.Algorithm.XXH64);
+    }
+
+    @Benchmark
+    public byte[] cachedMd5() throws IOException {
+        return mHasher.hash(mFile, FileHasher.Algorithm.MD5);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import io.twoyi.utils.IOUtils;
+
+/**
+ * The file operations of the rom install and settings paths: md5, unzip and recursive delete, see
+ * {@link CopyFileBenchmark} for copies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class IOUtilsBenchmark {
+
+    @State(Scope.Thread)
+    public static class SingleFile {
+
+        @Param({"65536", "16777216"})
+        public int fileSize;
+
+        File dir;
+        File source;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = BenchmarkFiles.newTempDir("ioutils");
+            source = BenchmarkFiles.write(new File(dir, "source"), BenchmarkFiles.data(fileSize, 0.5));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFiles.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Archive {
+
+        // a rom is a few large images among many small files.
+        @Param({"256"})
+        public int entries;
+
+        // whether the target already holds the extracted files, which are then only checked.
+        @Param({"false", "true"})
+        public boolean existing;
+
+        File dir;
+        File zip;
+        File target;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = BenchmarkFiles.newTempDir("unzip");
+            zip = new File(dir, "archive.zip");
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+            try {
+                for (int i = 0; i < entries; i++) {
+                    out.putNextEntry(new ZipEntry("dir" + i % 16 + "/file" + i));
+                    out.write(BenchmarkFiles.data(i % 32 == 0 ? 1024 * 1024 : 4096, 0.5));
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+            target = new File(dir, "target");
+        }
+
+        @Setup(Level.Invocation)
+        public void clearTarget() {
+            if (!existing) {
+                BenchmarkFiles.delete(target);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFiles.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tree {
+
+        @Param({"1024"})
+        public int files;
+
+        File dir;
+        File root;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() throws IOException {
+            dir = BenchmarkFiles.newTempDir("delete");
+        }
+
+        // every delete needs a fresh tree, creating it is not measured.
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            root = new File(dir, "tree");
+            byte[] data = BenchmarkFiles.data(1024, 0.5);
+            for (int i = 0; i < files; i++) {
+                File parent = new File(root, "a" + i % 8 + "/b" + i % 64);
+                IOUtils.ensureCreated(parent);
+                BenchmarkFiles.write(new File(parent, "file" + i), data);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFiles.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public byte[] md5(SingleFile state) throws IOException {
+        return IOUtils.md5(state.source);
+    }
+
+    @Benchmark
+    public File unzip(Archive state) throws IOException {
+        IOUtils.unzip(state.zip, state.target);
+        return state.target;
+    }
+
+    @Benchmark
+    public boolean deleteDirectory(Tree state) {
+        return IOUtils.deleteDirectory(state.root);
+    }
+}
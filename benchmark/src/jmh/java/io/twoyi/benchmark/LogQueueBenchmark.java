@@ -0,0 +1,98 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.LimitedQueue;
+import io.twoyi.utils.LogStore;
+
+/**
+ * Adding a logcat line to the bounded log queues, and taking a snapshot of everything they hold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LogQueueBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int LINES = 4096;
+
+    private String[] mLines;
+    private int mNext;
+    private LimitedQueue<String> mQueue;
+    private LogStore mStore;
+    private char[] mLine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mLines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            // `logcat -v brief`, what the boot log reads
+            mLines[i] = "I/Tag" + (i % 20) + "( " + (1000 + i % 50) + "): message number " + i + " of the boot log";
+        }
+        // the lines must take the parse path, not end up as unknown
+        LogStore probe = new LogStore(2, 256);
+        probe.add(mLines[7]);
+        if (probe.level(0) != LogStore.parseLevel('I') || !"Tag7".equals(probe.tag(0)) || probe.pid(0) != 1007) {
+            throw new IllegalStateException("fixture line isn't parsed: " + mLines[7]);
+        }
+        mQueue = new LimitedQueue<>(CAPACITY);
+        mStore = new LogStore(CAPACITY, CAPACITY * 128);
+        for (int i = 0; i < CAPACITY; i++) {
+            mQueue.add(nextLine());
+            mStore.add(nextLine());
+        }
+        mLine = new char[4096];
+    }
+
+    private String nextLine() {
+        mNext = (mNext + 1) % LINES;
+        return mLines[mNext];
+    }
+
+    @Benchmark
+    public boolean limitedQueueAdd() {
+        return mQueue.add(nextLine());
+    }
+
+    @Benchmark
+    public List<String> limitedQueueSnapshot() {
+        return new ArrayList<>(mQueue);
+    }
+
+    @Benchmark
+    public void logStoreAdd() {
+        mStore.add(nextLine());
+    }
+
+    @Benchmark
+    public void logStoreSnapshot(Blackhole blackhole) {
+        long end = mStore.writeIndex();
+        for (long i = mStore.firstIndex(end); i < end; i++) {
+            blackhole.consume(mStore.format(i, mLine));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.TreeCopier;
+
+/**
+ * TreeCopier against the recursive Files.copy it replaced, on a tree of many small files like an app directory
+ * and on a few huge files like the rom images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TreeCopyBenchmark {
+
+    @Param({"manySmall", "fewHuge"})
+    public String tree;
+
+    private File mDir;
+    private File mSource;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = BenchmarkFiles.newTempDir("tree");
+        mSource = new File(mDir, "source");
+        mTarget = new File(mDir, "target");
+        if ("manySmall".equals(tree)) {
+            // 4000 files of 4KB in 40 directories
+            byte[] data = BenchmarkFiles.data(4096, 0.5);
+            for (int i = 0; i < 40; i++) {
+                File dir = new File(mSource, "dir" + i);
+                dir.mkdirs();
+                for (int j = 0; j < 100; j++) {
+                    BenchmarkFiles.write(new File(dir, "file" + j), data);
+                }
+            }
+        } else {
+            // 4 files of 64MB
+            byte[] data = BenchmarkFiles.data(64 * 1024 * 1024, 0.5);
+            mSource.mkdirs();
+            for (int i = 0; i < 4; i++) {
+                BenchmarkFiles.write(new File(mSource, "image" + i), data);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(mDir);
+    }
+
+    @Benchmark
+    public TreeCopier.Result treeCopier() throws IOException {
+        return TreeCopier.copy(mSource, mTarget);
+    }
+
+    @Benchmark
+    public File recursiveFilesCopy() throws IOException {
+        copyDirectory(mSource, mTarget);
+        return mTarget;
+    }
+
+    private static void copyDirectory(File sourceDir, File targetDir) throws IOException {
+        if (!targetDir.exists()) {
+            targetDir.mkdirs();
+        }
+        File[] files = sourceDir.listFiles();
+        if (files != null) {
+            for (File sourceFile : files) {
+                File targetFile = new File(targetDir, sourceFile.getName());
+                if (sourceFile.isDirectory()) {
+                    copyDirectory(sourceFile, targetFile);
+                } else {
+                    Files.copy(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.twoyi.utils.IOUtils;
+
+/**
+ * Small writes through IOUtils.writeFully against the reflective lookup it used to do on every call. They go to
+ * /dev/null, so the score is the cost of the call and not of the disk. On the JVM android.system.Os.write is a
+ * stand-in, compare the differences rather than the absolute numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class WriteFullyBenchmark {
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private FileOutputStream mOut;
+    private FileDescriptor mFd;
+    private ByteBuffer mBuffer;
+    private byte[] mBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mOut = new FileOutputStream("/dev/null");
+        mFd = mOut.getFD();
+        mBytes = BenchmarkFiles.data(size, 0.5);
+        mBuffer = ByteBuffer.allocateDirect(size);
+        mBuffer.put(mBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        IOUtils.closeSilently(mOut);
+    }
+
+    @Benchmark
+    public ByteBuffer writeFullyBuffer() throws IOException {
+        mBuffer.clear();
+        IOUtils.writeFully(mFd, mBuffer);
+        return mBuffer;
+    }
+
+    @Benchmark
+    public byte[] writeFullyBytes() throws IOException {
+        IOUtils.writeFully(mFd, mBytes, 0, mBytes.length);
+        return mBytes;
+    }
+
+    @Benchmark
+    public ByteBuffer reflectiveLookup() throws Exception {
+        mBuffer.clear();
+        Method writeMethod = android.system.Os.class.getDeclaredMethod("write", FileDescriptor.class,
+                ByteBuffer.class);
+        writeMethod.setAccessible(true);
+        int remaining = mBuffer.remaining();
+        while (remaining > 0) {
+            Integer result = (Integer) writeMethod.invoke(null, mFd, mBuffer);
+            remaining -= result;
+        }
+        return mBuffer;
+    }
+}
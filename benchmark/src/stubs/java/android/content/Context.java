@@ -0,0 +1,21 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the framework class, only what the benchmarked sources use.
+ */
+public abstract class Context {
+
+    public abstract File getCacheDir();
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics;
+
+import java.io.OutputStream;
+import java.nio.Buffer;
+
+/**
+ * JVM stand-in for the framework class. Bitmaps can't be created on the JVM, so none of the benchmarks use them.
+ */
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888, RGBA_F16, HARDWARE
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG, WEBP, WEBP_LOSSY, WEBP_LOSSLESS
+    }
+
+    private Bitmap() {
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getWidth() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getHeight() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Config getConfig() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getByteCount() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void copyPixelsToBuffer(Buffer dst) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void copyPixelsFromBuffer(Buffer src) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics;
+
+import java.io.InputStream;
+
+/**
+ * JVM stand-in for the framework class, see {@link Bitmap}.
+ */
+public final class BitmapFactory {
+
+    private BitmapFactory() {
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    public static Bitmap decodeStream(InputStream is) {
+        throw new UnsupportedOperationException();
+    }
+}
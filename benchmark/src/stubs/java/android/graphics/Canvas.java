@@ -0,0 +1,17 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics;
+
+/**
+ * JVM stand-in for the framework class, see {@link Bitmap}.
+ */
+public final class Canvas {
+
+    public Canvas(Bitmap bitmap) {
+        throw new UnsupportedOperationException();
+    }
+}
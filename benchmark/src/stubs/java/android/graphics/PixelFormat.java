@@ -0,0 +1,18 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics;
+
+/**
+ * JVM stand-in for the framework class.
+ */
+public final class PixelFormat {
+
+    public static final int OPAQUE = -1;
+
+    private PixelFormat() {
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics.drawable;
+
+import android.graphics.Bitmap;
+
+/**
+ * JVM stand-in for the framework class, see {@link Bitmap}.
+ */
+public class BitmapDrawable extends Drawable {
+
+    public BitmapDrawable(Bitmap bitmap) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+
+/**
+ * JVM stand-in for the framework class, see {@link android.graphics.Bitmap}.
+ */
+public abstract class Drawable {
+
+    public int getOpacity() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getIntrinsicWidth() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getIntrinsicHeight() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setBounds(int left, int top, int right, int bottom) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void draw(Canvas canvas) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the framework class, reports the app's minSdkVersion.
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 27;
+    }
+
+    public static final class VERSION_CODES {
+        public static final int Q = 29;
+        public static final int R = 30;
+    }
+}
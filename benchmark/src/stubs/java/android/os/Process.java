@@ -0,0 +1,21 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the framework class.
+ */
+public final class Process {
+
+    private Process() {
+    }
+
+    public static int myPid() {
+        // a benchmark runs in a single process.
+        return 0;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.system;
+
+/**
+ * JVM stand-in for the framework class.
+ */
+public final class ErrnoException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: " + errno);
+        this.errno = errno;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * JVM stand-in for the framework class. lseek can't be called through a raw descriptor on the JVM, so it fails
+ * with EINVAL and IOUtils takes its portable fallback. write is emulated with the descriptor's FileChannel.
+ */
+public final class Os {
+
+    // the channels of the descriptors written so far, so a write costs about what the syscall would.
+    private static final Map<FileDescriptor, FileChannel> CHANNELS =
+            Collections.synchronizedMap(new WeakHashMap<FileDescriptor, FileChannel>());
+
+    private Os() {
+    }
+
+    private static FileChannel channel(FileDescriptor fd) {
+        FileChannel channel = CHANNELS.get(fd);
+        if (channel == null) {
+            // the stream doesn't own the descriptor, it stays open
+            channel = new FileOutputStream(fd).getChannel();
+            CHANNELS.put(fd, channel);
+        }
+        return channel;
+    }
+
+    public static long lseek(FileDescriptor fd, long offset, int whence) throws ErrnoException {
+        throw new ErrnoException("lseek", OsConstants.EINVAL);
+    }
+
+    public static int write(FileDescriptor fd, ByteBuffer buffer) throws ErrnoException, InterruptedIOException {
+        try {
+            return channel(fd).write(buffer);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ErrnoException("write", OsConstants.EINVAL);
+        }
+    }
+
+    public static int write(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount)
+            throws ErrnoException, InterruptedIOException {
+        return write(fd, ByteBuffer.wrap(bytes, byteOffset, byteCount));
+    }
+}
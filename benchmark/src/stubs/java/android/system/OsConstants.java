@@ -0,0 +1,21 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package android.system;
+
+/**
+ * JVM stand-in for the framework class, the linux values.
+ */
+public final class OsConstants {
+
+    public static final int EINTR = 4;
+    public static final int ENXIO = 6;
+    public static final int EAGAIN = 11;
+    public static final int EINVAL = 22;
+
+    private OsConstants() {
+    }
+}